@@ -0,0 +1,23 @@
+package teller;
+
+/**
+ * This interface represents a receiver of low-cash alerts raised by DepletionAnalytics.
+ * It is called synchronously on the thread of the deposit or withdraw that caused the alert,
+ * after that operation has committed and without any lock of DepletionAnalytics held, so
+ * implementations must be fast; hand slow work such as paging someone to an executor. An
+ * exception thrown by an implementation is handed to the uncaught exception handler of that
+ * thread and does not reach the caller of the operation.
+ */
+@FunctionalInterface
+public interface DepletionAlertListener {
+  /**
+   * Called when the estimated time until a denomination of a machine runs out drops below the
+   * alert threshold. It is not called again for the same machine and denomination until the
+   * estimate has risen above the threshold in between.
+   * @param machineId the id of the machine running low.
+   * @param denomination the denomination running low.
+   * @param quantity the quantity of the denomination left.
+   * @param secondsToEmpty the estimated number of seconds until the denomination runs out.
+   */
+  void onDepletionAlert(String machineId, int denomination, int quantity, double secondsToEmpty);
+}
@@ -0,0 +1,203 @@
+package teller;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that incrementally estimates how fast every denomination of every machine is depleted.
+ * Register it as an InventoryListener. Each event updates an exponentially decayed outflow rate
+ * per denomination, so only a fixed amount of state is kept per machine and nothing is ever
+ * recomputed over history. Outflow is the number of bills that left a denomination, which
+ * includes bills broken down to make change. Whenever the estimated time to empty of a
+ * denomination drops below the alert threshold, the alert listener is notified. Queries decay
+ * the outflow up to the current time, so a machine that has gone idle reports a falling rate.
+ * Alerts are delivered on the thread of the deposit or withdraw that caused them, after the
+ * estimates are updated; an alert listener that throws is reported, not passed on.
+ */
+public class DepletionAnalytics implements InventoryListener {
+
+  private final double meanLifetimeMillis;
+  private final double thresholdMillis;
+  private final DepletionAlertListener alertListener;
+  private final Clock clock;
+  private final Map<String, MachineState> machines;
+
+  /**
+   * Constructor for DepletionAnalytics that uses the system clock for queries.
+   * @param halfLife the time after which the weight of an observed outflow has halved.
+   * @param alertThreshold the time to empty below which an alert is raised.
+   * @param alertListener the listener notified of alerts.
+   * @throws IllegalArgumentException if any argument is null or a duration is not positive.
+   */
+  public DepletionAnalytics(Duration halfLife, Duration alertThreshold,
+      DepletionAlertListener alertListener) throws IllegalArgumentException {
+    this(halfLife, alertThreshold, alertListener, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor for DepletionAnalytics.
+   * @param halfLife the time after which the weight of an observed outflow has halved.
+   * @param alertThreshold the time to empty below which an alert is raised.
+   * @param alertListener the listener notified of alerts.
+   * @param clock the clock that queries decay the outflow up to. It should be the clock of the
+   *              machines, since their events carry its timestamps.
+   * @throws IllegalArgumentException if any argument is null or a duration is not positive.
+   */
+  public DepletionAnalytics(Duration halfLife, Duration alertThreshold,
+      DepletionAlertListener alertListener, Clock clock) throws IllegalArgumentException {
+    if (halfLife == null || alertThreshold == null || alertListener == null || clock == null) {
+      throw new IllegalArgumentException("Arguments cannot be null");
+    }
+    if (halfLife.isNegative() || halfLife.isZero()
+        || alertThreshold.isNegative() || alertThreshold.isZero()) {
+      throw new IllegalArgumentException("Durations must be positive");
+    }
+    this.meanLifetimeMillis = halfLife.toMillis() / Math.log(2);
+    this.thresholdMillis = alertThreshold.toMillis();
+    this.alertListener = alertListener;
+    this.clock = clock;
+    machines = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void onInventoryChange(InventoryEvent event) {
+    MachineState state = machines.get(event.getMachineId());
+    if (state == null) {
+      state = machines.computeIfAbsent(event.getMachineId(),
+          id -> new MachineState(event.denominationCount()));
+    }
+    // alerts are raised outside the state's lock, and must not fail the committed change
+    for (Runnable alert : state.update(event)) {
+      try {
+        alert.run();
+      } catch (RuntimeException e) {
+        ListenerFailures.report(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the estimated depletion rate of a denomination now.
+   * @param machineId the id of the machine.
+   * @param denomination the denomination whose rate is requested.
+   * @return the rate in bills per second, or 0 if nothing is known about the denomination.
+   */
+  public double getDepletionRate(String machineId, int denomination) {
+    MachineState state = machines.get(machineId);
+    return state == null ? 0 : state.rate(denomination, clock.millis()) * 1000;
+  }
+
+  /**
+   * Returns the estimated time from now until a denomination runs out.
+   * @param machineId the id of the machine.
+   * @param denomination the denomination whose time to empty is requested.
+   * @return the time in seconds, or positive infinity if the denomination is not being depleted.
+   */
+  public double getSecondsToEmpty(String machineId, int denomination) {
+    MachineState state = machines.get(machineId);
+    return state == null
+        ? Double.POSITIVE_INFINITY : state.millisToEmpty(denomination, clock.millis()) / 1000;
+  }
+
+  /**
+   * The fixed-size state of a single machine. Updated by the thread operating the machine and
+   * read by any thread, hence the synchronization.
+   */
+  private final class MachineState {
+
+    private final int[] denominations;
+    private final int[] quantities;
+    private final double[] decayedOutflow;
+    private final boolean[] alerted;
+    private long lastTimestamp;
+
+    MachineState(int size) {
+      denominations = new int[size];
+      quantities = new int[size];
+      decayedOutflow = new double[size];
+      alerted = new boolean[size];
+      lastTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Applies an event to the estimates.
+     * @return the alerts the event raised, to be delivered once the lock is released.
+     */
+    synchronized List<Runnable> update(InventoryEvent event) {
+      List<Runnable> alerts = Collections.emptyList();
+      double decay = 1;
+      if (lastTimestamp != Long.MIN_VALUE && event.getTimestamp() > lastTimestamp) {
+        decay = Math.exp(-(event.getTimestamp() - lastTimestamp) / meanLifetimeMillis);
+      }
+      lastTimestamp = Math.max(lastTimestamp, event.getTimestamp());
+      for (int i = 0; i < denominations.length; i++) {
+        int change = event.changeAt(i);
+        denominations[i] = event.denominationAt(i);
+        quantities[i] = event.quantityAt(i);
+        decayedOutflow[i] = decayedOutflow[i] * decay + (change < 0 ? -change : 0);
+
+        // quantity / rate < threshold, without dividing
+        boolean low = quantities[i] * meanLifetimeMillis < thresholdMillis * decayedOutflow[i];
+        if (low && !alerted[i]) {
+          alerted[i] = true;
+          if (alerts.isEmpty()) {
+            alerts = new ArrayList<>();
+          }
+          int denomination = denominations[i];
+          int quantity = quantities[i];
+          double secondsToEmpty = millisToEmptyAt(i) / 1000;
+          alerts.add(() -> alertListener.onDepletionAlert(event.getMachineId(), denomination,
+              quantity, secondsToEmpty));
+        } else if (!low) {
+          alerted[i] = false;
+        }
+      }
+      return alerts;
+    }
+
+    private double millisToEmptyAt(int index) {
+      return millisToEmptyAt(index, 1);
+    }
+
+    private double millisToEmptyAt(int index, double decay) {
+      if (decayedOutflow[index] == 0) {
+        return Double.POSITIVE_INFINITY;
+      }
+      return quantities[index] * meanLifetimeMillis / (decayedOutflow[index] * decay);
+    }
+
+    /**
+     * Returns the factor the outflow has decayed by between the latest event and the given time.
+     */
+    private double decayUntil(long now) {
+      if (lastTimestamp == Long.MIN_VALUE || now <= lastTimestamp) {
+        return 1;
+      }
+      return Math.exp(-(now - lastTimestamp) / meanLifetimeMillis);
+    }
+
+    private int indexOf(int denomination) {
+      for (int i = 0; i < denominations.length; i++) {
+        if (denominations[i] == denomination) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    synchronized double rate(int denomination, long now) {
+      int index = indexOf(denomination);
+      return index < 0 ? 0 : decayedOutflow[index] * decayUntil(now) / meanLifetimeMillis;
+    }
+
+    synchronized double millisToEmpty(int denomination, long now) {
+      int index = indexOf(denomination);
+      return index < 0 ? Double.POSITIVE_INFINITY : millisToEmptyAt(index, decayUntil(now));
+    }
+  }
+}
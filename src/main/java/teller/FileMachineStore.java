@@ -0,0 +1,148 @@
+package teller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Class that stores the state of each machine in its own small binary file in a directory.
+ * A file holds the length of the inventory, the inventory pairs and the sequence number, which
+ * is 44 bytes for a LimitedTellerMachine. A file is written to a temporary file that is forced
+ * to disk and then atomically moved in place, so a crash leaves either the old or the new state
+ * behind, never a mix.
+ */
+public class FileMachineStore implements MachineStore {
+
+  private static final String SUFFIX = ".inv";
+  private static final String HASHED_SUFFIX = ".sha.inv";
+  private static final int MAX_NAME_LENGTH = 200;
+  private static final int MAX_INVENTORY_LENGTH = 64;
+
+  private final Path directory;
+
+  /**
+   * Constructor for FileMachineStore. Creates the directory if it does not exist.
+   * @param directory the directory the files are kept in.
+   * @throws IOException if the directory cannot be created.
+   */
+  public FileMachineStore(Path directory) throws IOException {
+    if (directory == null) {
+      throw new IllegalArgumentException("Directory cannot be null");
+    }
+    this.directory = Files.createDirectories(directory);
+  }
+
+  /**
+   * Returns the file of a machine. Ids are encoded as lowercase hex so that any id is a valid
+   * file name that stays distinct on case-insensitive file systems, and ids too long for a file
+   * name are replaced by their SHA-256 hash. Hex never contains a dot, so the two kinds of names
+   * cannot collide.
+   * @param id the id of the machine.
+   * @return the path of the machine's file.
+   */
+  private Path fileOf(String id) {
+    byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length * 2 <= MAX_NAME_LENGTH) {
+      return directory.resolve(hex(bytes) + SUFFIX);
+    }
+    try {
+      return directory.resolve(hex(MessageDigest.getInstance("SHA-256").digest(bytes))
+          + HASHED_SUFFIX);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  @Override
+  public MachineSnapshot load(String id) throws IOException {
+    Path file = fileOf(id);
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < Integer.BYTES + Long.BYTES
+          || size > Integer.BYTES * (1 + MAX_INVENTORY_LENGTH) + Long.BYTES) {
+        throw new IOException("Corrupt machine file " + file + ": size " + size);
+      }
+      buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // keep reading until the buffer is full
+      }
+      buffer.flip();
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    int length = buffer.getInt();
+    if (length < 0 || length % 2 != 0
+        || buffer.remaining() != Integer.BYTES * length + Long.BYTES) {
+      throw new IOException("Corrupt machine file " + file + ": inventory length " + length);
+    }
+    int[] inventory = new int[length];
+    for (int i = 0; i < length; i++) {
+      inventory[i] = buffer.getInt();
+    }
+    long sequence = buffer.getLong();
+    if (sequence < 0) {
+      throw new IOException("Corrupt machine file " + file + ": sequence " + sequence);
+    }
+    return new MachineSnapshot(inventory, sequence);
+  }
+
+  @Override
+  public void save(String id, MachineSnapshot snapshot) throws IOException {
+    int[] inventory = snapshot.getInventory();
+    if (inventory.length > MAX_INVENTORY_LENGTH) {
+      throw new IOException("Inventory too long to store: " + inventory.length);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * (1 + inventory.length) + Long.BYTES);
+    buffer.putInt(inventory.length);
+    for (int value : inventory) {
+      buffer.putInt(value);
+    }
+    buffer.putLong(snapshot.getSequence());
+    buffer.flip();
+
+    Path temp = Files.createTempFile(directory, null, null);
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      Files.move(temp, fileOf(id), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      forceDirectory(directory);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Forces the directory entry of a moved file to disk. Not every platform can open a
+   * directory, in which case the rename is left to the file system.
+   * @param directory the directory the file was moved into.
+   */
+  static void forceDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories cannot be opened on this platform
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package teller;
+
+/**
+ * Class that approximately counts how often keys were seen recently, using a count-min sketch of
+ * 4-bit counters. Once as many increments as ten times the expected number of keys have been
+ * counted, all counters are halved so that old popularity fades. Not thread-safe.
+ */
+class FrequencySketch {
+
+  private static final int[] SEEDS = {0x97cb3127, 0xb0a4f7c5, 0x6a09e667, 0xbb67ae85};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int MAX_COUNT = 15;
+
+  private final long[] table;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * Constructor for FrequencySketch.
+   * @param expectedKeys the number of keys whose frequencies matter, at least 1.
+   */
+  FrequencySketch(int expectedKeys) {
+    int length = Integer.highestOneBit(Math.max(expectedKeys, 16) - 1) << 1;
+    table = new long[length];
+    sampleSize = 10 * Math.max(expectedKeys, 1);
+  }
+
+  /**
+   * Returns the estimated number of recent occurrences of a key, at most 15.
+   * @param key the key.
+   * @return the estimated frequency.
+   */
+  int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int h = rehash(hash, i);
+      frequency = Math.min(frequency, (int) ((table[index(h)] >>> offset(h)) & 0xf));
+    }
+    return frequency;
+  }
+
+  /**
+   * Counts an occurrence of a key.
+   * @param key the key.
+   */
+  void increment(Object key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int h = rehash(hash, i);
+      int index = index(h);
+      int offset = offset(h);
+      if (((table[index] >>> offset) & 0xf) < MAX_COUNT) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+    if (added && ++size >= sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size /= 2;
+  }
+
+  private int index(int h) {
+    return h & (table.length - 1);
+  }
+
+  private static int offset(int h) {
+    // each long holds 16 counters of 4 bits
+    return ((h >>> 24) & 0xf) << 2;
+  }
+
+  private static int rehash(int hash, int depth) {
+    int h = (hash ^ SEEDS[depth]) * 0x9e3779b9;
+    return h ^ (h >>> 15);
+  }
+
+  private static int spread(int hash) {
+    int h = hash * 0x85ebca6b;
+    return h ^ (h >>> 16);
+  }
+}
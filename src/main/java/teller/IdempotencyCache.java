@@ -0,0 +1,701 @@
+package teller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Class that remembers the outcome of requests by idempotency key for a limited time.
+ * Keys are spread over a fixed number of stripes, each guarded by its own lock and holding its
+ * share of the maximum size, so threads working on different keys rarely contend. Within a
+ * stripe entries are kept in insertion order, which is also their expiry order, so expired and
+ * excess entries are always removed from the front.
+ *
+ * <p>A key is reserved while its request executes, so concurrent requests with the same key
+ * execute once even when they come through different machines sharing the cache. An outcome
+ * records the machine and the exact request it belongs to, and a key reused for anything else
+ * is refused.
+ *
+ * <p>Given a journal file, every outcome is appended to it and forced to disk before the request
+ * returns, and the journal is replayed on construction, so outcomes survive a crash. Appends are
+ * group committed: a writer thread writes whatever outcomes are waiting and forces them with a
+ * single flush, so concurrent requests share the cost of a flush instead of queueing for one
+ * each. The journal is kept apart from MachineStore on purpose: a store replaces one small state
+ * per machine, while outcomes are many short-lived records that are only ever added, so a log
+ * costs one append per request instead of a rewrite. The journal only grows; call compact
+ * periodically to rewrite it with just the outcomes that have not expired.
+ */
+public class IdempotencyCache implements AutoCloseable {
+
+  static final byte DEPOSIT = 1;
+  static final byte WITHDRAW = 2;
+
+  private static final int STRIPES = 16;
+  private static final int HEADER_LENGTH = 3 * Integer.BYTES;
+  private static final int MAX_RECORD_LENGTH = 1 << 20;
+  private static final int MAX_UTF_LENGTH = 65535;
+  private static final int MAX_REQUEST_LENGTH =
+      (MAX_RECORD_LENGTH - 3 * (MAX_UTF_LENGTH + 2) - 32) / Integer.BYTES;
+  private static final int MAX_MESSAGE_LENGTH = 1024;
+
+  private final long ttlMillis;
+  private final int stripeCapacity;
+  private final Clock clock;
+  private final Stripe[] stripes;
+  private final Path journal;
+  private final Queue<JournalTask> journalTasks;
+  private FileChannel journalChannel;
+  private boolean journalClosed;
+
+  /**
+   * The remembered outcome of a request: whether it succeeded, or the message it was rejected
+   * with, together with the machine and the request it belongs to.
+   */
+  static final class Outcome {
+    final String machineId;
+    final byte operation;
+    final int[] request;
+    final boolean succeeded;
+    final String message;
+    final long expiresAt;
+
+    Outcome(String machineId, byte operation, int[] request, boolean succeeded, String message,
+        long expiresAt) {
+      this.machineId = machineId;
+      this.operation = operation;
+      this.request = request;
+      this.succeeded = succeeded;
+      this.message = message;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean matches(String machineId, byte operation, int[] request) {
+      return this.operation == operation && this.machineId.equals(machineId)
+          && Arrays.equals(this.request, request);
+    }
+  }
+
+  /**
+   * A share of the cache guarded by its own lock, with the keys whose request is executing.
+   */
+  private static final class Stripe {
+    private final Map<String, Outcome> outcomes = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<Void>> pending = new HashMap<>();
+  }
+
+  /**
+   * Work for the journal's writer thread: a record to append, or else a compaction or, if
+   * close is set, closing the journal.
+   */
+  private static final class JournalTask {
+    private final ByteBuffer record;
+    private final boolean close;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    JournalTask(ByteBuffer record, boolean close) {
+      this.record = record;
+      this.close = close;
+    }
+  }
+
+  /**
+   * Constructor for IdempotencyCache that keeps outcomes in memory only and uses the system
+   * clock.
+   * @param maximumSize the maximum number of remembered keys.
+   * @param ttl how long an outcome is remembered.
+   * @throws IllegalArgumentException if maximumSize or ttl is not positive.
+   */
+  public IdempotencyCache(int maximumSize, Duration ttl) throws IllegalArgumentException {
+    this(maximumSize, ttl, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor for IdempotencyCache that keeps outcomes in memory only.
+   * @param maximumSize the maximum number of remembered keys.
+   * @param ttl how long an outcome is remembered.
+   * @param clock the clock used to expire outcomes.
+   * @throws IllegalArgumentException if maximumSize or ttl is not positive, or clock is null.
+   */
+  public IdempotencyCache(int maximumSize, Duration ttl, Clock clock)
+      throws IllegalArgumentException {
+    this(null, maximumSize, ttl, clock);
+  }
+
+  /**
+   * Constructor for IdempotencyCache that writes every outcome through to a journal. The
+   * outcomes in the journal that have not expired are loaded first. A last record torn by a
+   * crash is cut off, but a damaged record followed by others is refused, since dropping the
+   * records after it would forget outcomes and let their requests execute again.
+   * @param maximumSize the maximum number of remembered keys.
+   * @param ttl how long an outcome is remembered.
+   * @param clock the clock used to expire outcomes.
+   * @param journal the journal file, created if it does not exist.
+   * @throws IllegalArgumentException if maximumSize or ttl is not positive, or clock or journal
+   *                                  is null.
+   * @throws IOException if the journal cannot be opened or holds a damaged record that is not
+   *                     the last one.
+   */
+  public IdempotencyCache(int maximumSize, Duration ttl, Clock clock, Path journal)
+      throws IllegalArgumentException, IOException {
+    this(checkJournal(journal), maximumSize, ttl, clock);
+    journalChannel = FileChannel.open(journal, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      replay();
+    } catch (IOException e) {
+      journalChannel.close();
+      throw e;
+    }
+    Thread writer = new Thread(this::writeJournal, "idempotency-journal-" + journal.getFileName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private IdempotencyCache(Path journal, int maximumSize, Duration ttl, Clock clock) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+    }
+    if (ttl == null || ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("Time to live must be positive");
+    }
+    if (clock == null) {
+      throw new IllegalArgumentException("Clock cannot be null");
+    }
+    this.ttlMillis = ttl.toMillis();
+    this.stripeCapacity = (maximumSize + STRIPES - 1) / STRIPES;
+    this.clock = clock;
+    this.journal = journal;
+    journalTasks = new ArrayDeque<>();
+    stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  private static Path checkJournal(Path journal) throws IllegalArgumentException {
+    if (journal == null) {
+      throw new IllegalArgumentException("Journal cannot be null");
+    }
+    return journal;
+  }
+
+  private Stripe stripeOf(String key) {
+    int h = key.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * Returns the remembered outcome of a key, or executes the request and remembers its outcome.
+   * While the request executes the key is reserved, and other requests with the key wait until
+   * its outcome is remembered. An IllegalArgumentException thrown by the request is remembered as
+   * a rejection and rethrown; any other exception is not remembered and frees the key.
+   * @param key the idempotency key.
+   * @param machineId the id of the machine the request is made on.
+   * @param operation DEPOSIT or WITHDRAW.
+   * @param request the pairs of the request.
+   * @param action executes the request and returns whether it succeeded.
+   * @return the outcome of the request.
+   * @throws IllegalArgumentException if the key was used for a different machine or request, or
+   *                                  the request was rejected, or the key, machine id or request
+   *                                  is too long to be written to the journal.
+   * @throws UncheckedIOException if the outcome cannot be written to the journal. It is still
+   *                              remembered in memory.
+   */
+  Outcome execute(String key, String machineId, byte operation, int[] request,
+      BooleanSupplier action) throws IllegalArgumentException {
+    checkJournalable(key, machineId, request);
+    Stripe stripe = stripeOf(key);
+    CompletableFuture<Void> reservation = new CompletableFuture<>();
+    while (true) {
+      CompletableFuture<Void> pending;
+      synchronized (stripe) {
+        // an outcome still being written is not returned until the write is done
+        pending = stripe.pending.get(key);
+        if (pending == null) {
+          Outcome outcome = stripe.outcomes.get(key);
+          if (outcome != null && outcome.expiresAt <= clock.millis()) {
+            stripe.outcomes.remove(key);
+            outcome = null;
+          }
+          if (outcome != null) {
+            if (!outcome.matches(machineId, operation, request)) {
+              throw new IllegalArgumentException(
+                  "Idempotency key used for a different request: " + key);
+            }
+            return outcome;
+          }
+          stripe.pending.put(key, reservation);
+        }
+      }
+      if (pending == null) {
+        break;
+      }
+      pending.join();
+    }
+
+    try {
+      int[] copy = request.clone();
+      IllegalArgumentException rejection = null;
+      boolean succeeded = false;
+      try {
+        succeeded = action.getAsBoolean();
+      } catch (IllegalArgumentException e) {
+        rejection = e;
+      }
+      String message = null;
+      if (rejection != null) {
+        message = String.valueOf(rejection.getMessage());
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+          message = message.substring(0, MAX_MESSAGE_LENGTH);
+        }
+      }
+      Outcome outcome = new Outcome(machineId, operation, copy, succeeded, message,
+          clock.millis() + ttlMillis);
+      try {
+        remember(key, outcome);
+      } catch (UncheckedIOException e) {
+        if (rejection != null) {
+          e.addSuppressed(rejection);
+        }
+        throw e;
+      }
+      if (rejection != null) {
+        throw rejection;
+      }
+      return outcome;
+    } finally {
+      synchronized (stripe) {
+        stripe.pending.remove(key);
+      }
+      reservation.complete(null);
+    }
+  }
+
+  /**
+   * Refuses a request whose record could not be written to the journal, before it executes.
+   */
+  private void checkJournalable(String key, String machineId, int[] request)
+      throws IllegalArgumentException {
+    if (journal == null) {
+      return;
+    }
+    if (utfLength(key) > MAX_UTF_LENGTH) {
+      throw new IllegalArgumentException("Idempotency key too long to be journaled");
+    }
+    if (utfLength(machineId) > MAX_UTF_LENGTH) {
+      throw new IllegalArgumentException("Machine id too long to be journaled");
+    }
+    if (request.length > MAX_REQUEST_LENGTH) {
+      throw new IllegalArgumentException("Request too long to be journaled: " + request.length);
+    }
+  }
+
+  /**
+   * Returns the number of bytes DataOutput.writeUTF encodes a string in.
+   */
+  private static long utfLength(String value) {
+    long length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      length += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+    }
+    return length;
+  }
+
+  /**
+   * Remembers an outcome and, if there is a journal, waits until the writer thread has forced it
+   * to disk. The outcome is remembered in memory first, so that a compaction the writer runs
+   * before the append cannot leave it out.
+   */
+  private void remember(String key, Outcome outcome) {
+    put(key, outcome, clock.millis());
+    if (journal == null) {
+      return;
+    }
+    try {
+      submit(new JournalTask(encode(key, outcome), false)).join();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot write the outcome of " + key + " to the journal", e);
+    } catch (CompletionException e) {
+      throw new UncheckedIOException("Cannot write the outcome of " + key + " to the journal",
+          (IOException) e.getCause());
+    }
+  }
+
+  /**
+   * Remembers an outcome, evicting expired outcomes and, if its stripe is still full, the oldest
+   * outcome of the stripe.
+   */
+  private void put(String key, Outcome outcome, long now) {
+    Stripe stripe = stripeOf(key);
+    synchronized (stripe) {
+      stripe.outcomes.remove(key);
+      Iterator<Outcome> eldest = stripe.outcomes.values().iterator();
+      while (eldest.hasNext()) {
+        Outcome next = eldest.next();
+        if (next.expiresAt > now && stripe.outcomes.size() < stripeCapacity) {
+          break;
+        }
+        eldest.remove();
+      }
+      stripe.outcomes.put(key, outcome);
+    }
+  }
+
+  /**
+   * Returns the number of remembered keys, including expired ones not yet removed.
+   * @return the number of keys.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.outcomes.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Rewrites the journal with only the outcomes that have not expired, replacing it atomically.
+   * The rewrite runs on the writer thread between two group commits, so appends wait for it
+   * while requests still execute.
+   * @throws IllegalStateException if this cache has no journal.
+   * @throws IOException if the journal cannot be written or is closed.
+   */
+  public void compact() throws IOException {
+    if (journal == null) {
+      throw new IllegalStateException("Cache has no journal");
+    }
+    await(submit(new JournalTask(null, false)));
+  }
+
+  /**
+   * Closes the journal, if there is one, once the outcomes waiting to be written are written.
+   * Outcomes can no longer be remembered afterwards.
+   * @throws IOException if the journal cannot be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (journal == null) {
+      return;
+    }
+    await(submit(new JournalTask(null, true)));
+  }
+
+  private CompletableFuture<Void> submit(JournalTask task) {
+    synchronized (journalTasks) {
+      if (journalClosed) {
+        if (task.close) {
+          task.done.complete(null);
+        } else {
+          task.done.completeExceptionally(new IOException("Journal is closed: " + journal));
+        }
+        return task.done;
+      }
+      journalClosed = task.close;
+      journalTasks.add(task);
+      journalTasks.notifyAll();
+    }
+    return task.done;
+  }
+
+  private static void await(CompletableFuture<Void> done) throws IOException {
+    try {
+      done.join();
+    } catch (CompletionException e) {
+      throw (IOException) e.getCause();
+    }
+  }
+
+  /**
+   * The loop of the writer thread. It takes every task waiting, appends the records among them
+   * with one flush, and runs compactions and the final close in between, in submission order.
+   */
+  private void writeJournal() {
+    List<JournalTask> batch = new ArrayList<>();
+    List<JournalTask> appends = new ArrayList<>();
+    while (true) {
+      synchronized (journalTasks) {
+        while (journalTasks.isEmpty()) {
+          try {
+            journalTasks.wait();
+          } catch (InterruptedException e) {
+            // only close stops the writer, as requests are waiting on it
+          }
+        }
+        batch.addAll(journalTasks);
+        journalTasks.clear();
+      }
+      for (JournalTask task : batch) {
+        if (task.record != null) {
+          appends.add(task);
+          continue;
+        }
+        append(appends);
+        appends.clear();
+        try {
+          if (task.close) {
+            journalChannel.close();
+          } else {
+            rewrite();
+          }
+          task.done.complete(null);
+        } catch (IOException e) {
+          task.done.completeExceptionally(e);
+        }
+        if (task.close) {
+          return;
+        }
+      }
+      append(appends);
+      appends.clear();
+      batch.clear();
+    }
+  }
+
+  /**
+   * Appends records to the journal and forces them to disk with one flush. If that fails,
+   * whatever was partly written is cut off again so that it cannot hide later records.
+   */
+  private void append(List<JournalTask> appends) {
+    if (appends.isEmpty()) {
+      return;
+    }
+    ByteBuffer[] records = new ByteBuffer[appends.size()];
+    long length = 0;
+    for (int i = 0; i < records.length; i++) {
+      records[i] = appends.get(i).record;
+      length += records[i].remaining();
+    }
+    IOException failure = null;
+    long start = -1;
+    try {
+      start = journalChannel.position();
+      long written = 0;
+      while (written < length) {
+        written += journalChannel.write(records);
+      }
+      journalChannel.force(true);
+    } catch (IOException e) {
+      failure = e;
+      if (start >= 0) {
+        try {
+          journalChannel.truncate(start);
+          journalChannel.position(start);
+        } catch (IOException truncateFailure) {
+          e.addSuppressed(truncateFailure);
+        }
+      }
+    }
+    for (JournalTask task : appends) {
+      if (failure == null) {
+        task.done.complete(null);
+      } else {
+        task.done.completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * Writes the outcomes that have not expired to a new journal, and moves it in place of the old
+   * one. Runs on the writer thread. Outcomes are put in memory before their record is submitted,
+   * so every outcome whose record went to the old journal is in the new one.
+   */
+  private void rewrite() throws IOException {
+    long now = clock.millis();
+    List<ByteBuffer> records = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      List<Map.Entry<String, Outcome>> live = new ArrayList<>();
+      synchronized (stripe) {
+        for (Map.Entry<String, Outcome> entry : stripe.outcomes.entrySet()) {
+          if (entry.getValue().expiresAt > now) {
+            live.add(Map.entry(entry.getKey(), entry.getValue()));
+          }
+        }
+      }
+      for (Map.Entry<String, Outcome> entry : live) {
+        records.add(encode(entry.getKey(), entry.getValue()));
+      }
+    }
+
+    Path directory = journal.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, null, null);
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        for (ByteBuffer record : records) {
+          while (record.hasRemaining()) {
+            channel.write(record);
+          }
+        }
+        channel.force(true);
+      }
+      Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      FileMachineStore.forceDirectory(directory);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    journalChannel.close();
+    journalChannel = FileChannel.open(journal, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    journalChannel.position(journalChannel.size());
+  }
+
+  /**
+   * Loads the outcomes of the journal that have not expired. A damaged record is only cut off if
+   * nothing follows it: a crash can tear the last append, but not one with appends after it.
+   * A run of zeros at the end, which some file systems leave after a crash, is cut off too.
+   */
+  private void replay() throws IOException {
+    long now = clock.millis();
+    long size = journalChannel.size();
+    long valid = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    while (valid < size) {
+      header.clear();
+      if (!read(header, valid)) {
+        // a torn header is always the end of the journal
+        break;
+      }
+      header.flip();
+      int length = header.getInt();
+      int lengthCheck = header.getInt();
+      int checksum = header.getInt();
+      if (length != ~lengthCheck || length < 0 || length > MAX_RECORD_LENGTH) {
+        if (zeroFrom(valid, size)) {
+          break;
+        }
+        throw new IOException("Corrupt journal " + journal + ": bad record length at " + valid);
+      }
+      long end = valid + HEADER_LENGTH + length;
+      if (end > size) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      read(payload, valid + HEADER_LENGTH);
+      if (checksum(payload.array()) != checksum) {
+        if (end == size) {
+          break;
+        }
+        throw new IOException("Corrupt journal " + journal + ": bad checksum at " + valid);
+      }
+      decode(payload.array(), now);
+      valid = end;
+    }
+    if (valid < size) {
+      journalChannel.truncate(valid);
+    }
+    journalChannel.position(valid);
+  }
+
+  private boolean read(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (journalChannel.read(buffer, position + buffer.position()) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean zeroFrom(long position, long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    while (position < size) {
+      buffer.clear();
+      int read = journalChannel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) != 0) {
+          return false;
+        }
+      }
+      position += read;
+    }
+    return true;
+  }
+
+  /**
+   * Encodes a record as its payload length, the complement of the length, the checksum of the
+   * payload and the payload. The complement lets replay tell a damaged length from a torn end.
+   */
+  private static ByteBuffer encode(String key, Outcome outcome) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(key);
+      out.writeUTF(outcome.machineId);
+      out.writeByte(outcome.operation);
+      out.writeInt(outcome.request.length);
+      for (int value : outcome.request) {
+        out.writeInt(value);
+      }
+      out.writeBoolean(outcome.succeeded);
+      out.writeBoolean(outcome.message != null);
+      if (outcome.message != null) {
+        out.writeUTF(outcome.message);
+      }
+      out.writeLong(outcome.expiresAt);
+    }
+    byte[] payload = bytes.toByteArray();
+    if (payload.length > MAX_RECORD_LENGTH) {
+      throw new IOException("Outcome of " + key + " is too large for the journal");
+    }
+    ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+    record.putInt(payload.length).putInt(~payload.length).putInt(checksum(payload))
+        .put(payload).flip();
+    return record;
+  }
+
+  private void decode(byte[] payload, long now) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      String key = in.readUTF();
+      String machineId = in.readUTF();
+      byte operation = in.readByte();
+      int length = in.readInt();
+      if (length < 0 || length > payload.length / Integer.BYTES) {
+        throw new IOException("Corrupt journal record: request length " + length);
+      }
+      int[] request = new int[length];
+      for (int i = 0; i < length; i++) {
+        request[i] = in.readInt();
+      }
+      boolean succeeded = in.readBoolean();
+      String message = in.readBoolean() ? in.readUTF() : null;
+      long expiresAt = in.readLong();
+      if (expiresAt > now) {
+        put(key, new Outcome(machineId, operation, request, succeeded, message, expiresAt), now);
+      }
+    }
+  }
+
+  private static int checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,106 @@
+package teller;
+
+/**
+ * Class that adds idempotency keys to the deposits and withdrawals of a teller machine.
+ * The first request with a key is executed and its outcome remembered in an IdempotencyCache;
+ * a retry with the same key returns the remembered outcome without touching the machine again.
+ * A key reused for a different request, or for a different machine sharing the cache, is
+ * refused. Requests without a key are passed straight to the machine.
+ */
+public class IdempotentTellerMachine implements TellerMachine {
+
+  private final String machineId;
+  private final TellerMachine machine;
+  private final IdempotencyCache cache;
+
+  /**
+   * Constructor for IdempotentTellerMachine that identifies the machine by its own id.
+   * @param machine the machine requests are executed on.
+   * @param cache the cache outcomes are remembered in, which may be shared by several machines.
+   * @throws IllegalArgumentException if machine or cache is null.
+   */
+  public IdempotentTellerMachine(LimitedTellerMachine machine, IdempotencyCache cache)
+      throws IllegalArgumentException {
+    this(machine == null ? null : machine.getId(), machine, cache);
+  }
+
+  /**
+   * Constructor for IdempotentTellerMachine.
+   * @param machineId the id outcomes of this machine are remembered under. Every machine
+   *                  sharing the cache must have a different id.
+   * @param machine the machine requests are executed on.
+   * @param cache the cache outcomes are remembered in, which may be shared by several machines.
+   * @throws IllegalArgumentException if any argument is null.
+   */
+  public IdempotentTellerMachine(String machineId, TellerMachine machine, IdempotencyCache cache)
+      throws IllegalArgumentException {
+    if (machineId == null || machine == null || cache == null) {
+      throw new IllegalArgumentException("Machine id, machine and cache cannot be null");
+    }
+    this.machineId = machineId;
+    this.machine = machine;
+    this.cache = cache;
+  }
+
+  /**
+   * Deposits like deposit, unless a deposit with the same key was already made.
+   * @param key the idempotency key of this request.
+   * @param deposit several pairs of (denomination,quantity) to be deposited.
+   * @throws IllegalArgumentException if the deposit is invalid, or was invalid when first made
+   *                                  with this key, or the key or deposit is null, or the key
+   *                                  was used for a different request.
+   * @throws java.io.UncheckedIOException if the outcome was executed but cannot be written to
+   *                                      the cache's journal.
+   */
+  public void deposit(String key, int... deposit) throws IllegalArgumentException {
+    checkRequest(key, deposit);
+    IdempotencyCache.Outcome outcome = cache.execute(key, machineId, IdempotencyCache.DEPOSIT,
+        deposit, () -> {
+          deposit(deposit);
+          return true;
+        });
+    if (outcome.message != null) {
+      throw new IllegalArgumentException(outcome.message);
+    }
+  }
+
+  /**
+   * Withdraws like withdraw, unless a withdrawal with the same key was already made.
+   * @param key the idempotency key of this request.
+   * @param request several pairs of numbers (denomination, quantity) to be withdrawn.
+   * @return true if the request was fulfilled when first made with this key, false otherwise.
+   * @throws IllegalArgumentException if the key or request is null, or the key was used for a
+   *                                  different request.
+   * @throws java.io.UncheckedIOException if the outcome was executed but cannot be written to
+   *                                      the cache's journal.
+   */
+  public boolean withdraw(String key, int... request) throws IllegalArgumentException {
+    checkRequest(key, request);
+    return cache.execute(key, machineId, IdempotencyCache.WITHDRAW, request,
+        () -> withdraw(request)).succeeded;
+  }
+
+  @Override
+  public synchronized void deposit(int... deposit) throws IllegalArgumentException {
+    machine.deposit(deposit);
+  }
+
+  @Override
+  public synchronized boolean withdraw(int... request) {
+    return machine.withdraw(request);
+  }
+
+  @Override
+  public int getQuantity(int denomination) {
+    return machine.getQuantity(denomination);
+  }
+
+  private static void checkRequest(String key, int[] request) throws IllegalArgumentException {
+    if (key == null) {
+      throw new IllegalArgumentException("Idempotency key cannot be null");
+    }
+    if (request == null) {
+      throw new IllegalArgumentException("Request cannot be null");
+    }
+  }
+}
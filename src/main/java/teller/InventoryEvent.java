@@ -0,0 +1,169 @@
+package teller;
+
+import java.util.Arrays;
+
+/**
+ * Class that represents a committed change to the inventory of a teller machine.
+ * An event carries the quantity of every denomination after the change, and the signed net change
+ * of every denomination caused by it (including bills broken down to make change).
+ */
+public final class InventoryEvent {
+
+  /**
+   * The kind of operation that caused an inventory change.
+   */
+  public enum Type {
+    DEPOSIT,
+    WITHDRAW
+  }
+
+  private final String machineId;
+  private final Type type;
+  private final long sequence;
+  private final long timestamp;
+  private final int[] denominations;
+  private final int[] quantities;
+  private final int[] changes;
+
+  /**
+   * Constructor for InventoryEvent. The arrays are taken as they are and must not be modified
+   * afterwards.
+   * @param machineId the id of the machine whose inventory changed.
+   * @param type the operation that caused the change.
+   * @param sequence the per-machine sequence number of this change, starting at 1.
+   * @param timestamp the time of the change in milliseconds since the epoch.
+   * @param denominations the denominations the quantities and changes refer to.
+   * @param quantities the quantity of each denomination after the change.
+   * @param changes the signed net change of each denomination.
+   */
+  InventoryEvent(String machineId, Type type, long sequence, long timestamp,
+      int[] denominations, int[] quantities, int[] changes) {
+    this.machineId = machineId;
+    this.type = type;
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.denominations = denominations;
+    this.quantities = quantities;
+    this.changes = changes;
+  }
+
+  /**
+   * Returns the id of the machine whose inventory changed.
+   * @return the machine id.
+   */
+  public String getMachineId() {
+    return machineId;
+  }
+
+  /**
+   * Returns the operation that caused the change. For a coalesced event this is the type of the
+   * latest operation it covers.
+   * @return the operation type.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the per-machine sequence number of this change.
+   * @return the sequence number.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Returns the time of the change in milliseconds since the epoch.
+   * @return the timestamp.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Returns the number of denominations this event covers.
+   * @return the number of denominations.
+   */
+  public int denominationCount() {
+    return denominations.length;
+  }
+
+  /**
+   * Returns the denomination at the given index.
+   * @param index the index of the denomination.
+   * @return the denomination.
+   */
+  public int denominationAt(int index) {
+    return denominations[index];
+  }
+
+  /**
+   * Returns the quantity after the change of the denomination at the given index.
+   * @param index the index of the denomination.
+   * @return the quantity.
+   */
+  public int quantityAt(int index) {
+    return quantities[index];
+  }
+
+  /**
+   * Returns the signed net change of the denomination at the given index.
+   * @param index the index of the denomination.
+   * @return the change in quantity.
+   */
+  public int changeAt(int index) {
+    return changes[index];
+  }
+
+  /**
+   * Returns the quantity after the change of the given denomination.
+   * @param denomination the denomination whose quantity is requested.
+   * @return the quantity, or 0 if this event does not cover the denomination.
+   */
+  public int getQuantity(int denomination) {
+    int index = indexOf(denomination);
+    return index < 0 ? 0 : quantities[index];
+  }
+
+  /**
+   * Returns the signed net change of the given denomination.
+   * @param denomination the denomination whose change is requested.
+   * @return the change, or 0 if this event does not cover the denomination.
+   */
+  public int getChange(int denomination) {
+    int index = indexOf(denomination);
+    return index < 0 ? 0 : changes[index];
+  }
+
+  /**
+   * Merges this event with a later event of the same machine. The result has the quantities,
+   * type, sequence and timestamp of the later event and the summed changes of both.
+   * @param later the later event.
+   * @return the coalesced event.
+   */
+  InventoryEvent coalesce(InventoryEvent later) {
+    int[] merged = new int[changes.length];
+    for (int i = 0; i < merged.length; i++) {
+      merged[i] = changes[i] + later.changes[i];
+    }
+    return new InventoryEvent(machineId, later.type, later.sequence, later.timestamp,
+        denominations, later.quantities, merged);
+  }
+
+  private int indexOf(int denomination) {
+    for (int i = 0; i < denominations.length; i++) {
+      if (denominations[i] == denomination) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString() {
+    return "InventoryEvent{machineId=" + machineId + ", type=" + type + ", sequence=" + sequence
+        + ", timestamp=" + timestamp + ", denominations=" + Arrays.toString(denominations)
+        + ", quantities=" + Arrays.toString(quantities) + ", changes=" + Arrays.toString(changes)
+        + "}";
+  }
+}
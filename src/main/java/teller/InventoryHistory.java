@@ -0,0 +1,216 @@
+package teller;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that records the inventory history of teller machines and answers what the inventory of
+ * a machine was at any point in time. Register it as an InventoryListener. Every change is
+ * appended to a compact per-machine log, and after every checkpointInterval changes the
+ * quantities are stored as a checkpoint. A query finds the latest checkpoint at or before the
+ * requested time by binary search and replays at most checkpointInterval changes from there.
+ * Because checkpoints are spaced by number of changes, they are dense in time while a machine is
+ * busy and sparse while it is quiet.
+ *
+ * <p>The history is kept in memory only and starts empty on every restart. It retains every
+ * change until told otherwise, at 24 bytes per change plus a checkpoint of 28 bytes every
+ * checkpointInterval changes for a LimitedTellerMachine, so a long-running process should call
+ * truncateBefore periodically with the oldest time it still needs to answer for.
+ */
+public class InventoryHistory implements InventoryListener {
+
+  private final int checkpointInterval;
+  private final Map<String, Timeline> timelines;
+
+  /**
+   * Constructor for InventoryHistory.
+   * @param checkpointInterval the number of changes between two checkpoints of a machine, which
+   *                           is the most a query has to replay.
+   * @throws IllegalArgumentException if checkpointInterval is not positive.
+   */
+  public InventoryHistory(int checkpointInterval) throws IllegalArgumentException {
+    if (checkpointInterval <= 0) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive: "
+          + checkpointInterval);
+    }
+    this.checkpointInterval = checkpointInterval;
+    timelines = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void onInventoryChange(InventoryEvent event) {
+    Timeline timeline = timelines.get(event.getMachineId());
+    if (timeline == null) {
+      timeline = timelines.computeIfAbsent(event.getMachineId(), id -> new Timeline(event));
+    }
+    timeline.append(event);
+  }
+
+  /**
+   * Returns the inventory of a machine at the given time, including every change made at that
+   * time, as pairs of (denomination, quantity) in the format accepted by deposit.
+   * @param machineId the id of the machine.
+   * @param timestamp the time in milliseconds since the epoch.
+   * @return the inventory pairs, or null if the machine had no recorded change at or before the
+   *         given time.
+   */
+  public int[] getInventoryAt(String machineId, long timestamp) {
+    Timeline timeline = timelines.get(machineId);
+    return timeline == null ? null : timeline.inventoryAt(timestamp);
+  }
+
+  /**
+   * Discards the history before the given time. Every time at or after the horizon can still be
+   * queried, and so can a range of times before it back to the checkpoint the history is kept
+   * from; older times return null. A machine keeps at least one checkpoint, so its latest
+   * inventory stays known however far back it last changed.
+   * @param horizon the oldest time in milliseconds since the epoch that must stay answerable.
+   */
+  public void truncateBefore(long horizon) {
+    for (Timeline timeline : timelines.values()) {
+      timeline.truncateBefore(horizon);
+    }
+  }
+
+  /**
+   * Returns the number of checkpoints stored for a machine.
+   * @param machineId the id of the machine.
+   * @return the number of checkpoints.
+   */
+  public int getCheckpointCount(String machineId) {
+    Timeline timeline = timelines.get(machineId);
+    return timeline == null ? 0 : timeline.checkpointCount();
+  }
+
+  /**
+   * The log and checkpoints of a single machine, kept in flat growable arrays.
+   * Checkpoint i holds the quantities after the first checkpointOps[i] changes of the log, and
+   * the first checkpoint is the base the log is kept from.
+   */
+  private final class Timeline {
+
+    private final int[] denominations;
+    private final int width;
+    private final int[] current;
+    private long[] opTimes;
+    private int[] opChanges;
+    private int opCount;
+    private long[] checkpointTimes;
+    private int[] checkpointOps;
+    private int[] checkpointQuantities;
+    private int checkpointCount;
+
+    Timeline(InventoryEvent first) {
+      width = first.denominationCount();
+      denominations = new int[width];
+      current = new int[width];
+      for (int i = 0; i < width; i++) {
+        denominations[i] = first.denominationAt(i);
+        current[i] = first.quantityAt(i) - first.changeAt(i);
+      }
+      opTimes = new long[16];
+      opChanges = new int[16 * width];
+      checkpointTimes = new long[4];
+      checkpointOps = new int[4];
+      checkpointQuantities = new int[4 * width];
+      // the quantities before the first recorded change
+      checkpoint(first.getTimestamp());
+    }
+
+    synchronized void append(InventoryEvent event) {
+      // timestamps must not go backwards for the binary search to work
+      long last = opCount == 0 ? checkpointTimes[checkpointCount - 1] : opTimes[opCount - 1];
+      long time = Math.max(event.getTimestamp(), last);
+      if (opCount == opTimes.length) {
+        opTimes = Arrays.copyOf(opTimes, opCount * 2);
+        opChanges = Arrays.copyOf(opChanges, opCount * 2 * width);
+      }
+      opTimes[opCount] = time;
+      for (int i = 0; i < width; i++) {
+        opChanges[opCount * width + i] = event.changeAt(i);
+        current[i] += event.changeAt(i);
+      }
+      opCount++;
+      if (opCount - checkpointOps[checkpointCount - 1] >= checkpointInterval) {
+        checkpoint(time);
+      }
+    }
+
+    private void checkpoint(long time) {
+      if (checkpointCount == checkpointTimes.length) {
+        checkpointTimes = Arrays.copyOf(checkpointTimes, checkpointCount * 2);
+        checkpointOps = Arrays.copyOf(checkpointOps, checkpointCount * 2);
+        checkpointQuantities = Arrays.copyOf(checkpointQuantities, checkpointCount * 2 * width);
+      }
+      checkpointTimes[checkpointCount] = time;
+      checkpointOps[checkpointCount] = opCount;
+      System.arraycopy(current, 0, checkpointQuantities, checkpointCount * width, width);
+      checkpointCount++;
+    }
+
+    synchronized int checkpointCount() {
+      return checkpointCount;
+    }
+
+    /**
+     * Makes the last checkpoint at or before the horizon the new base, and drops the checkpoints
+     * and changes before it. The arrays are shrunk so that the memory is actually released.
+     */
+    synchronized void truncateBefore(long horizon) {
+      int base = 0;
+      while (base + 1 < checkpointCount && checkpointTimes[base + 1] <= horizon) {
+        base++;
+      }
+      if (base == 0) {
+        return;
+      }
+      int firstOp = checkpointOps[base];
+      opCount -= firstOp;
+      int opCapacity = Math.max(16, opCount * 2);
+      opTimes = Arrays.copyOfRange(opTimes, firstOp, firstOp + opCapacity);
+      opChanges = Arrays.copyOfRange(opChanges, firstOp * width,
+          (firstOp + opCapacity) * width);
+
+      checkpointCount -= base;
+      int checkpointCapacity = Math.max(4, checkpointCount * 2);
+      checkpointTimes = Arrays.copyOfRange(checkpointTimes, base, base + checkpointCapacity);
+      checkpointOps = Arrays.copyOfRange(checkpointOps, base, base + checkpointCapacity);
+      for (int i = 0; i < checkpointCount; i++) {
+        checkpointOps[i] -= firstOp;
+      }
+      checkpointQuantities = Arrays.copyOfRange(checkpointQuantities, base * width,
+          (base + checkpointCapacity) * width);
+    }
+
+    synchronized int[] inventoryAt(long timestamp) {
+      if (timestamp < checkpointTimes[0]) {
+        return null;
+      }
+      // the last checkpoint taken at or before timestamp
+      int low = 0;
+      int high = checkpointCount - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (checkpointTimes[mid] <= timestamp) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      int[] quantities = Arrays.copyOfRange(checkpointQuantities, low * width,
+          (low + 1) * width);
+      for (int op = checkpointOps[low]; op < opCount && opTimes[op] <= timestamp; op++) {
+        for (int i = 0; i < width; i++) {
+          quantities[i] += opChanges[op * width + i];
+        }
+      }
+      int[] inventory = new int[width * 2];
+      for (int i = 0; i < width; i++) {
+        inventory[2 * i] = denominations[i];
+        inventory[2 * i + 1] = quantities[i];
+      }
+      return inventory;
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package teller;
+
+/**
+ * This interface represents a receiver of committed inventory changes of a teller machine.
+ * It is called synchronously on the thread that performed the deposit or withdraw, so
+ * implementations must be fast and must not throw. An exception that is thrown anyway is handed
+ * to the uncaught exception handler of that thread, and does not undo the change or keep other
+ * listeners from being notified.
+ */
+@FunctionalInterface
+public interface InventoryListener {
+  /**
+   * Called after a deposit or withdraw has changed the inventory of a teller machine.
+   * @param event the committed change.
+   */
+  void onInventoryChange(InventoryEvent event);
+}
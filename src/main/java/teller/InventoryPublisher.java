@@ -0,0 +1,325 @@
+package teller;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that publishes the inventory events of teller machines to reactive subscribers.
+ * Register it as an InventoryListener on one or more machines. Events are delivered
+ * asynchronously on the given executor, each subscriber has its own bounded buffer and only
+ * receives as many events as it requested. Publishing never blocks: when a buffer is full the
+ * oldest buffered event is dropped. In coalescing mode a subscriber's buffer holds at most one
+ * event per machine, and a new event for a machine that is still buffered is merged into it.
+ */
+public class InventoryPublisher implements Flow.Publisher<InventoryEvent>, InventoryListener,
+    AutoCloseable {
+
+  private final Executor executor;
+  private final int bufferCapacity;
+  private final boolean coalesce;
+  private final List<BufferedSubscription> subscriptions;
+  private final AtomicLong dropped;
+  private volatile boolean closed;
+
+  /**
+   * Constructor for InventoryPublisher that delivers on the common pool with the default buffer
+   * size and no coalescing.
+   */
+  public InventoryPublisher() {
+    this(ForkJoinPool.commonPool(), Flow.defaultBufferSize(), false);
+  }
+
+  /**
+   * Constructor for InventoryPublisher.
+   * @param executor the executor events are delivered on.
+   * @param bufferCapacity the maximum number of buffered events per subscriber.
+   * @param coalesce whether buffered events of the same machine are merged.
+   * @throws IllegalArgumentException if executor is null or bufferCapacity is not positive.
+   */
+  public InventoryPublisher(Executor executor, int bufferCapacity, boolean coalesce)
+      throws IllegalArgumentException {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null");
+    }
+    if (bufferCapacity <= 0) {
+      throw new IllegalArgumentException("Buffer capacity must be positive: " + bufferCapacity);
+    }
+    this.executor = executor;
+    this.bufferCapacity = bufferCapacity;
+    this.coalesce = coalesce;
+    subscriptions = new CopyOnWriteArrayList<>();
+    dropped = new AtomicLong();
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super InventoryEvent> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber cannot be null");
+    }
+    BufferedSubscription subscription = new BufferedSubscription(subscriber);
+    subscriptions.add(subscription);
+    if (closed) {
+      subscription.complete();
+    }
+    subscription.start();
+  }
+
+  @Override
+  public void onInventoryChange(InventoryEvent event) {
+    if (closed) {
+      return;
+    }
+    for (BufferedSubscription subscription : subscriptions) {
+      subscription.offer(event);
+    }
+  }
+
+  /**
+   * Returns the number of events dropped so far because a subscriber's buffer was full.
+   * @return the number of dropped events, summed over all subscribers this publisher ever had.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of current subscribers.
+   * @return the number of subscribers.
+   */
+  public int getSubscriberCount() {
+    return subscriptions.size();
+  }
+
+  /**
+   * Stops accepting events. Subscribers receive the events already buffered and then
+   * onComplete.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (BufferedSubscription subscription : subscriptions) {
+      subscription.complete();
+    }
+  }
+
+  /**
+   * The subscription of a single subscriber. Signals to the subscriber are serialized by a
+   * work-in-progress counter: whoever raises it from zero schedules a drain on the executor.
+   */
+  private final class BufferedSubscription implements Flow.Subscription, Runnable {
+
+    private final Flow.Subscriber<? super InventoryEvent> subscriber;
+    private final ArrayDeque<InventoryEvent> queue;
+    private final Map<String, InventoryEvent> latest;
+    private final AtomicInteger wip;
+    private long demand;
+    private boolean started;
+    private boolean completed;
+    private boolean cancelled;
+    private Throwable error;
+
+    BufferedSubscription(Flow.Subscriber<? super InventoryEvent> subscriber) {
+      this.subscriber = subscriber;
+      queue = new ArrayDeque<>();
+      latest = new LinkedHashMap<>();
+      wip = new AtomicInteger();
+    }
+
+    void start() {
+      schedule();
+    }
+
+    void offer(InventoryEvent event) {
+      synchronized (this) {
+        if (cancelled || completed) {
+          return;
+        }
+        if (coalesce) {
+          InventoryEvent buffered = latest.get(event.getMachineId());
+          if (buffered != null) {
+            // replacing the value of an existing key keeps its place in the buffer
+            latest.put(event.getMachineId(), buffered.coalesce(event));
+          } else {
+            if (latest.size() >= bufferCapacity) {
+              Iterator<InventoryEvent> eldest = latest.values().iterator();
+              eldest.next();
+              eldest.remove();
+              dropped.incrementAndGet();
+            }
+            latest.put(event.getMachineId(), event);
+          }
+        } else {
+          if (queue.size() >= bufferCapacity) {
+            queue.poll();
+            dropped.incrementAndGet();
+          }
+          queue.add(event);
+        }
+      }
+      schedule();
+    }
+
+    void complete() {
+      synchronized (this) {
+        completed = true;
+      }
+      schedule();
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        if (n <= 0) {
+          error = new IllegalArgumentException("Requested number must be positive: " + n);
+        } else {
+          demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+      }
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        cancelled = true;
+        queue.clear();
+        latest.clear();
+      }
+      subscriptions.remove(this);
+    }
+
+    private void schedule() {
+      if (wip.getAndIncrement() == 0) {
+        try {
+          executor.execute(this);
+        } catch (RejectedExecutionException e) {
+          // this thread raised the counter from zero, so no drain can signal concurrently
+          cancel();
+          if (signalSubscribe()) {
+            signalError(e);
+          }
+        }
+      }
+    }
+
+    /**
+     * Calls onSubscribe once. This may run on the thread of a deposit or withdraw, so a
+     * subscriber that throws is reported and cancelled rather than passed on.
+     * @return false if the subscriber threw, true otherwise.
+     */
+    private boolean signalSubscribe() {
+      if (started) {
+        return true;
+      }
+      started = true;
+      try {
+        subscriber.onSubscribe(this);
+        return true;
+      } catch (RuntimeException e) {
+        cancel();
+        ListenerFailures.report(e);
+        return false;
+      }
+    }
+
+    /**
+     * Calls onError on a cancelled subscription, reporting whatever the subscriber throws.
+     */
+    private void signalError(Throwable failure) {
+      try {
+        subscriber.onError(failure);
+      } catch (RuntimeException e) {
+        ListenerFailures.report(e);
+      }
+    }
+
+    /**
+     * Calls onComplete on a cancelled subscription, reporting whatever the subscriber throws.
+     */
+    private void signalComplete() {
+      try {
+        subscriber.onComplete();
+      } catch (RuntimeException e) {
+        ListenerFailures.report(e);
+      }
+    }
+
+    private InventoryEvent poll() {
+      if (coalesce) {
+        Iterator<InventoryEvent> eldest = latest.values().iterator();
+        if (!eldest.hasNext()) {
+          return null;
+        }
+        InventoryEvent event = eldest.next();
+        eldest.remove();
+        return event;
+      }
+      return queue.poll();
+    }
+
+    @Override
+    public void run() {
+      int missed = 1;
+      while (true) {
+        if (!signalSubscribe()) {
+          return;
+        }
+        while (true) {
+          InventoryEvent next = null;
+          Throwable failure;
+          boolean done;
+          synchronized (this) {
+            if (cancelled) {
+              return;
+            }
+            failure = error;
+            if (failure == null && demand > 0) {
+              next = poll();
+              if (next != null) {
+                demand--;
+              }
+            }
+            done = next == null && completed && queue.isEmpty() && latest.isEmpty();
+          }
+          if (failure != null) {
+            cancel();
+            signalError(failure);
+            return;
+          }
+          if (next == null) {
+            if (done) {
+              cancel();
+              signalComplete();
+              return;
+            }
+            break;
+          }
+          try {
+            subscriber.onNext(next);
+          } catch (RuntimeException e) {
+            cancel();
+            signalError(e);
+            return;
+          }
+        }
+        missed = wip.addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -1,8 +1,12 @@
 package teller;
 
+import java.time.Clock;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 /**
@@ -13,18 +17,153 @@ public class LimitedTellerMachine implements TellerMachine {
 
   private final Map<Integer, Integer> cash;
   private static final int[] DENOMINATIONS_DESC = {20, 10, 5, 1};
+  private final String id;
+  private final Clock clock;
+  private final List<InventoryListener> listeners;
+  private long sequence;
 
   /**
    * Constructor for limitedTellerMachine.
-   * Sets all denominations to have quantity 0.
+   * Sets all denominations to have quantity 0 and gives the machine a random id.
    */
   public LimitedTellerMachine() {
+    this(UUID.randomUUID().toString());
+  }
+
+  /**
+   * Constructor for limitedTellerMachine with a given id.
+   * Sets all denominations to have quantity 0.
+   * @param id the id of this machine, used to identify its inventory events.
+   */
+  public LimitedTellerMachine(String id) {
+    this(id, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor for limitedTellerMachine with a given id and clock.
+   * Sets all denominations to have quantity 0.
+   * @param id the id of this machine, used to identify its inventory events.
+   * @param clock the clock used to timestamp inventory events.
+   * @throws IllegalArgumentException if id or clock is null.
+   */
+  public LimitedTellerMachine(String id, Clock clock) throws IllegalArgumentException {
+    if (id == null || clock == null) {
+      throw new IllegalArgumentException("Id and clock cannot be null");
+    }
+    this.id = id;
+    this.clock = clock;
+    listeners = new CopyOnWriteArrayList<>();
     cash = new HashMap<>();
     for (int denomination: DENOMINATIONS_DESC) {
       cash.put(denomination, 0);
     }
   }
 
+  /**
+   * Constructor for limitedTellerMachine that restores a machine from a snapshot. The restored
+   * inventory is not published, and the sequence continues from the snapshot's.
+   * @param id the id of this machine, used to identify its inventory events.
+   * @param clock the clock used to timestamp inventory events.
+   * @param snapshot the state to restore, as returned by getSnapshot.
+   * @throws IllegalArgumentException if any argument is null or the snapshot holds an invalid
+   *                                  inventory.
+   */
+  public LimitedTellerMachine(String id, Clock clock, MachineSnapshot snapshot)
+      throws IllegalArgumentException {
+    this(id, clock);
+    if (snapshot == null) {
+      throw new IllegalArgumentException("Snapshot cannot be null");
+    }
+    deposit(snapshot.getInventory());
+    sequence = snapshot.getSequence();
+  }
+
+  /**
+   * Returns the id of this machine.
+   * @return the machine id.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Returns the sequence number of the latest change to the inventory of this machine.
+   * Every deposit or withdraw that changes the inventory advances it by one, whether or not
+   * any listener is registered.
+   * @return the sequence number, 0 if the inventory never changed.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Registers a listener that is notified after every deposit or withdraw that changes the
+   * inventory of this machine.
+   * @param listener the listener to be added.
+   * @throws IllegalArgumentException if listener is null.
+   */
+  public void addInventoryListener(InventoryListener listener) throws IllegalArgumentException {
+    if (listener == null) {
+      throw new IllegalArgumentException("Listener cannot be null");
+    }
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a previously registered listener.
+   * @param listener the listener to be removed.
+   */
+  public void removeInventoryListener(InventoryListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Takes a copy of the current quantity of every denomination.
+   * @return the quantities, in the order of DENOMINATIONS_DESC.
+   */
+  private int[] snapshot() {
+    int[] quantities = new int[DENOMINATIONS_DESC.length];
+    for (int i = 0; i < DENOMINATIONS_DESC.length; i++) {
+      quantities[i] = cash.get(DENOMINATIONS_DESC[i]);
+    }
+    return quantities;
+  }
+
+  /**
+   * Counts the change from the given quantities to the current ones and notifies the listeners
+   * of it. Does nothing if nothing changed. The change is already committed, so an exception
+   * thrown by a listener is reported instead of thrown, and the other listeners are still
+   * notified.
+   * @param type the operation that caused the change.
+   * @param before the quantities before the operation, as returned by snapshot.
+   */
+  private void publish(InventoryEvent.Type type, int[] before) {
+    int[] after = snapshot();
+    int[] changes = new int[after.length];
+    boolean changed = false;
+    for (int i = 0; i < after.length; i++) {
+      changes[i] = after[i] - before[i];
+      changed |= changes[i] != 0;
+    }
+    if (!changed) {
+      return;
+    }
+    // every committed change takes a sequence number, so late listeners can detect gaps
+    sequence++;
+    if (listeners.isEmpty()) {
+      return;
+    }
+    InventoryEvent event = new InventoryEvent(id, type, sequence, clock.millis(),
+        DENOMINATIONS_DESC, after, changes);
+    for (InventoryListener listener : listeners) {
+      try {
+        listener.onInventoryChange(event);
+      } catch (RuntimeException e) {
+        ListenerFailures.report(e);
+      }
+    }
+  }
+
   /**
    * Determines if the denomination is valid based on the AVAILABLE_DENOMINATIONS.
    * @param denomination the denomination to be checked.
@@ -154,7 +293,9 @@ public class LimitedTellerMachine implements TellerMachine {
         }
       }
     }
+    int[] before = snapshot();
     cash.putAll(tempCash);
+    publish(InventoryEvent.Type.WITHDRAW, before);
     return true;
   }
 
@@ -164,21 +305,52 @@ public class LimitedTellerMachine implements TellerMachine {
       throw new IllegalArgumentException("Cannot have odd number of parameters");
     }
 
-    for (int i = 0; i < deposit.length; i += 2) {
-      int denomination = deposit[i];
-      int quantity = deposit[i + 1];
-      if (isInvalidDenomination(denomination)) {
-        throw new IllegalArgumentException("Invalid denomination: " + denomination);
-      }
-      if (quantity < 0) {
-        throw new IllegalArgumentException("Cannot be negative quantity: " + quantity);
+    int[] before = snapshot();
+    try {
+      for (int i = 0; i < deposit.length; i += 2) {
+        int denomination = deposit[i];
+        int quantity = deposit[i + 1];
+        if (isInvalidDenomination(denomination)) {
+          throw new IllegalArgumentException("Invalid denomination: " + denomination);
+        }
+        if (quantity < 0) {
+          throw new IllegalArgumentException("Cannot be negative quantity: " + quantity);
+        }
+        cash.put(denomination, cash.get(denomination) + quantity);
       }
-      cash.put(denomination, cash.get(denomination) + quantity);
+    } catch (IllegalArgumentException e) {
+      // pairs before an invalid one are already deposited, so they are published as well
+      publish(InventoryEvent.Type.DEPOSIT, before);
+      throw e;
     }
+    publish(InventoryEvent.Type.DEPOSIT, before);
+  }
+
+  /**
+   * Returns the state of this machine, from which the constructor can restore it.
+   * @return the inventory and sequence number of this machine.
+   */
+  public MachineSnapshot getSnapshot() {
+    return new MachineSnapshot(getInventory(), sequence);
   }
 
   @Override
   public int getQuantity(int denomination) {
     return cash.getOrDefault(denomination, 0);
   }
+
+  /**
+   * Returns the whole inventory of this machine as pairs of (denomination, quantity), in the
+   * format accepted by deposit. Depositing the result into an empty machine recreates this
+   * machine's inventory.
+   * @return the inventory pairs, largest denomination first.
+   */
+  public int[] getInventory() {
+    int[] inventory = new int[DENOMINATIONS_DESC.length * 2];
+    for (int i = 0; i < DENOMINATIONS_DESC.length; i++) {
+      inventory[2 * i] = DENOMINATIONS_DESC[i];
+      inventory[2 * i + 1] = cash.get(DENOMINATIONS_DESC[i]);
+    }
+    return inventory;
+  }
 }
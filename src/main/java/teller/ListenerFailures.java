@@ -0,0 +1,21 @@
+package teller;
+
+/**
+ * Class that reports exceptions thrown by listeners and subscribers. They must not reach the
+ * thread that made the change, because the change is already committed by then.
+ */
+final class ListenerFailures {
+
+  private ListenerFailures() {
+  }
+
+  /**
+   * Hands an exception to the uncaught exception handler of the current thread, which prints it
+   * unless the application installed a handler of its own.
+   * @param failure the exception thrown by a listener or subscriber.
+   */
+  static void report(Throwable failure) {
+    Thread thread = Thread.currentThread();
+    thread.getUncaughtExceptionHandler().uncaughtException(thread, failure);
+  }
+}
@@ -0,0 +1,459 @@
+package teller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Class that keeps a bounded working set of teller machines, loaded lazily from a MachineStore.
+ * A machine that is not resident is loaded on first access, or created empty if nothing is
+ * stored for it. Concurrent requests for the same machine share a single load. When the working
+ * set is full, machines are evicted using W-TinyLFU: new machines enter a small LRU window, and
+ * a machine leaving the window only replaces a machine of the main segmented LRU if it has been
+ * accessed more often recently, so a scan over many machines cannot flush the popular ones.
+ *
+ * <p>An evicted machine that changed since it was loaded is written back outside the registry
+ * lock. Until that write succeeded it stays detached but reachable: a request for it takes it
+ * back instead of reloading stale state from the store, and a failed write is retried by flush.
+ * So the working set may briefly exceed its capacity while write-backs are pending or failing.
+ *
+ * <p>Use compute to operate on a machine: it keeps the machine from being written back while
+ * the operation runs, and serializes operations on the same machine. A machine returned by get
+ * can be evicted at any time; changes made to it afterwards are still noticed and written back
+ * by the next flush, but may interleave with a reload of the same id.
+ */
+public class MachineRegistry implements AutoCloseable {
+
+  private final MachineStore store;
+  private final Clock clock;
+  private final int windowCapacity;
+  private final int mainCapacity;
+  private final int protectedCapacity;
+  private final FrequencySketch sketch;
+  private final Map<String, Entry> window;
+  private final Map<String, Entry> probation;
+  private final Map<String, Entry> protectedSegment;
+  private final Map<String, Entry> detached;
+  private final Map<String, CompletableFuture<Void>> loading;
+  private final List<InventoryListener> listeners;
+
+  /**
+   * A machine known to the registry. The registry's lock guards pins and membership of the
+   * segments; the entry's own lock orders the write-backs of its machine.
+   */
+  private final class Entry implements InventoryListener {
+    private final String id;
+    private final LimitedTellerMachine machine;
+    private volatile boolean dirty;
+    private volatile boolean evicted;
+    private int pins;
+
+    Entry(String id, LimitedTellerMachine machine) {
+      this.id = id;
+      this.machine = machine;
+    }
+
+    @Override
+    public void onInventoryChange(InventoryEvent event) {
+      dirty = true;
+      if (evicted) {
+        detachLateChange(this);
+      }
+    }
+  }
+
+  /**
+   * Constructor for MachineRegistry that gives machines the system clock.
+   * @param store the store machines are loaded from and written back to.
+   * @param capacity the maximum number of resident machines.
+   * @throws IllegalArgumentException if store is null or capacity is not positive.
+   */
+  public MachineRegistry(MachineStore store, int capacity) throws IllegalArgumentException {
+    this(store, capacity, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor for MachineRegistry.
+   * @param store the store machines are loaded from and written back to.
+   * @param capacity the maximum number of resident machines.
+   * @param clock the clock given to loaded machines.
+   * @throws IllegalArgumentException if store or clock is null or capacity is not positive.
+   */
+  public MachineRegistry(MachineStore store, int capacity, Clock clock)
+      throws IllegalArgumentException {
+    if (store == null || clock == null) {
+      throw new IllegalArgumentException("Store and clock cannot be null");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.store = store;
+    this.clock = clock;
+    windowCapacity = Math.max(1, capacity / 100);
+    mainCapacity = capacity - windowCapacity;
+    protectedCapacity = mainCapacity * 4 / 5;
+    sketch = new FrequencySketch(capacity);
+    window = new LinkedHashMap<>(16, 0.75f, true);
+    probation = new LinkedHashMap<>(16, 0.75f, true);
+    protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    detached = new HashMap<>();
+    loading = new ConcurrentHashMap<>();
+    listeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Registers a listener on every machine loaded from now on, such as an InventoryPublisher.
+   * @param listener the listener to be added.
+   * @throws IllegalArgumentException if listener is null.
+   */
+  public void addInventoryListener(InventoryListener listener) throws IllegalArgumentException {
+    if (listener == null) {
+      throw new IllegalArgumentException("Listener cannot be null");
+    }
+    listeners.add(listener);
+  }
+
+  /**
+   * Returns the machine with the given id, loading it if it is not resident. Prefer compute for
+   * anything that changes the machine.
+   * @param id the id of the machine.
+   * @return the machine.
+   * @throws IllegalArgumentException if id is null.
+   * @throws UncheckedIOException if the machine cannot be loaded.
+   */
+  public LimitedTellerMachine get(String id) throws IllegalArgumentException {
+    if (id == null) {
+      throw new IllegalArgumentException("Id cannot be null");
+    }
+    return acquire(id, false).machine;
+  }
+
+  /**
+   * Applies an operation to the machine with the given id, loading it if it is not resident.
+   * The machine is not written back while the operation runs, even if it is evicted meanwhile,
+   * and operations on the same machine run one at a time.
+   * @param id the id of the machine.
+   * @param operation the operation to apply.
+   * @param <R> the type of the operation's result.
+   * @return the result of the operation.
+   * @throws IllegalArgumentException if id or operation is null.
+   * @throws UncheckedIOException if the machine cannot be loaded.
+   */
+  public <R> R compute(String id, Function<? super LimitedTellerMachine, ? extends R> operation)
+      throws IllegalArgumentException {
+    if (id == null || operation == null) {
+      throw new IllegalArgumentException("Id and operation cannot be null");
+    }
+    Entry entry = acquire(id, true);
+    try {
+      synchronized (entry.machine) {
+        return operation.apply(entry.machine);
+      }
+    } finally {
+      release(entry);
+    }
+  }
+
+  /**
+   * Returns whether a machine is currently resident.
+   * @param id the id of the machine.
+   * @return true if the machine is resident, false otherwise.
+   */
+  public synchronized boolean isResident(String id) {
+    return window.containsKey(id) || probation.containsKey(id)
+        || protectedSegment.containsKey(id);
+  }
+
+  /**
+   * Returns the number of resident machines.
+   * @return the number of resident machines.
+   */
+  public synchronized int size() {
+    return window.size() + probation.size() + protectedSegment.size();
+  }
+
+  /**
+   * Returns the number of evicted machines whose write-back has not succeeded yet.
+   * @return the number of pending write-backs.
+   */
+  public synchronized int getPendingWriteBackCount() {
+    return detached.size();
+  }
+
+  /**
+   * Writes every machine that changed back to the store, including evicted machines whose
+   * write-back failed before. A failure does not stop the other machines from being written.
+   * @throws UncheckedIOException if any machine cannot be written, with the failures of the
+   *                              other machines suppressed.
+   */
+  public void flush() {
+    List<Entry> entries;
+    synchronized (this) {
+      entries = new ArrayList<>(size() + detached.size());
+      entries.addAll(window.values());
+      entries.addAll(probation.values());
+      entries.addAll(protectedSegment.values());
+      entries.addAll(detached.values());
+    }
+    UncheckedIOException failure = null;
+    for (Entry entry : entries) {
+      IOException e = writeBack(entry);
+      if (e == null) {
+        continue;
+      }
+      if (failure == null) {
+        failure = new UncheckedIOException("Cannot write back machine " + entry.id, e);
+      } else {
+        failure.addSuppressed(e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Writes every machine that changed back to the store.
+   * @throws UncheckedIOException if any machine cannot be written.
+   */
+  @Override
+  public void close() {
+    flush();
+  }
+
+  /**
+   * Finds or loads the entry of a machine, optionally pinning it, and writes back whatever
+   * that evicted once the registry lock is released.
+   */
+  private Entry acquire(String id, boolean pin) {
+    while (true) {
+      List<Entry> evicted = new ArrayList<>();
+      Entry entry;
+      synchronized (this) {
+        entry = lookup(id, evicted);
+        if (entry != null && pin) {
+          entry.pins++;
+        }
+      }
+      writeBackEvicted(evicted);
+      if (entry != null) {
+        return entry;
+      }
+
+      CompletableFuture<Void> load = new CompletableFuture<>();
+      CompletableFuture<Void> pending = loading.putIfAbsent(id, load);
+      if (pending != null) {
+        // the machine is resident once the other load is done, unless it was evicted again
+        await(pending);
+        continue;
+      }
+      try {
+        synchronized (this) {
+          // another load may have finished since the lookup above
+          entry = lookup(id, evicted);
+          if (entry != null && pin) {
+            entry.pins++;
+          }
+        }
+        if (entry == null) {
+          Entry loaded = load(id);
+          synchronized (this) {
+            insert(loaded, evicted);
+            if (pin) {
+              loaded.pins++;
+            }
+          }
+          entry = loaded;
+        }
+        load.complete(null);
+      } catch (RuntimeException e) {
+        load.completeExceptionally(e);
+        throw e;
+      } finally {
+        loading.remove(id, load);
+      }
+      writeBackEvicted(evicted);
+      return entry;
+    }
+  }
+
+  private void release(Entry entry) {
+    boolean writeBack;
+    synchronized (this) {
+      entry.pins--;
+      writeBack = entry.pins == 0 && entry.evicted;
+    }
+    if (writeBack) {
+      // a failure keeps the entry detached for flush to retry
+      writeBack(entry);
+    }
+  }
+
+  private Entry load(String id) {
+    MachineSnapshot snapshot;
+    try {
+      snapshot = store.load(id);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot load machine " + id, e);
+    }
+    LimitedTellerMachine machine = snapshot == null
+        ? new LimitedTellerMachine(id, clock) : new LimitedTellerMachine(id, clock, snapshot);
+    Entry entry = new Entry(id, machine);
+    machine.addInventoryListener(entry);
+    for (InventoryListener listener : listeners) {
+      machine.addInventoryListener(listener);
+    }
+    return entry;
+  }
+
+  private static void await(CompletableFuture<Void> load) {
+    try {
+      load.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Finds a resident or detached machine and records the access. A hit in probation promotes
+   * the machine to the protected segment, and a detached machine is taken back into the window.
+   */
+  private Entry lookup(String id, List<Entry> evicted) {
+    Entry entry = window.get(id);
+    if (entry == null) {
+      entry = protectedSegment.get(id);
+    }
+    if (entry == null) {
+      entry = probation.remove(id);
+      if (entry != null) {
+        protectedSegment.put(id, entry);
+        if (protectedSegment.size() > protectedCapacity) {
+          Entry demoted = removeEldest(protectedSegment);
+          probation.put(demoted.id, demoted);
+        }
+      }
+    }
+    if (entry != null) {
+      sketch.increment(id);
+      return entry;
+    }
+    entry = detached.remove(id);
+    if (entry != null) {
+      entry.evicted = false;
+      insert(entry, evicted);
+    }
+    return entry;
+  }
+
+  /**
+   * Adds a machine to the window. The machine pushed out of the window is admitted to the main
+   * segments if there is room, or if it is more popular than the machine the main segments
+   * would evict; the loser of that comparison is evicted.
+   */
+  private void insert(Entry entry, List<Entry> evicted) {
+    sketch.increment(entry.id);
+    window.put(entry.id, entry);
+    if (window.size() <= windowCapacity) {
+      return;
+    }
+    Entry candidate = removeEldest(window);
+    if (probation.size() + protectedSegment.size() < mainCapacity) {
+      probation.put(candidate.id, candidate);
+      return;
+    }
+    Map<String, Entry> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+    if (victimSegment.isEmpty()) {
+      evict(candidate, evicted);
+      return;
+    }
+    String victimId = victimSegment.keySet().iterator().next();
+    if (sketch.frequency(candidate.id) > sketch.frequency(victimId)) {
+      evict(removeEldest(victimSegment), evicted);
+      probation.put(candidate.id, candidate);
+    } else {
+      evict(candidate, evicted);
+    }
+  }
+
+  /**
+   * Detaches an evicted machine. It is written back by the caller once the lock is released.
+   */
+  private void evict(Entry entry, List<Entry> evicted) {
+    entry.evicted = true;
+    detached.put(entry.id, entry);
+    evicted.add(entry);
+  }
+
+  /**
+   * Called when a machine changes after it was evicted, typically through a reference obtained
+   * from get. Detaches it again so that flush writes the change back.
+   */
+  private synchronized void detachLateChange(Entry entry) {
+    if (entry.evicted && !detached.containsKey(entry.id) && !isResident(entry.id)) {
+      detached.put(entry.id, entry);
+    }
+  }
+
+  private void writeBackEvicted(List<Entry> evicted) {
+    for (Entry entry : evicted) {
+      boolean pinned;
+      synchronized (this) {
+        pinned = entry.pins > 0;
+      }
+      if (!pinned) {
+        // a failure keeps the entry detached for flush to retry
+        writeBack(entry);
+      }
+    }
+  }
+
+  /**
+   * Writes a machine back if it changed, and forgets it once it is detached, clean and unpinned.
+   * @return the failure, or null if the write succeeded or was not needed.
+   */
+  private IOException writeBack(Entry entry) {
+    IOException failure = null;
+    synchronized (entry) {
+      if (entry.dirty) {
+        MachineSnapshot snapshot;
+        synchronized (entry.machine) {
+          entry.dirty = false;
+          snapshot = entry.machine.getSnapshot();
+        }
+        try {
+          store.save(entry.id, snapshot);
+        } catch (IOException e) {
+          entry.dirty = true;
+          failure = e;
+        }
+      }
+    }
+    synchronized (this) {
+      if (!entry.dirty && entry.pins == 0) {
+        detached.remove(entry.id, entry);
+      }
+    }
+    return failure;
+  }
+
+  private static Entry removeEldest(Map<String, Entry> segment) {
+    Iterator<Entry> iterator = segment.values().iterator();
+    Entry eldest = iterator.next();
+    iterator.remove();
+    return eldest;
+  }
+}
@@ -0,0 +1,67 @@
+package teller;
+
+import java.util.Arrays;
+
+/**
+ * Class that represents the persistent state of a teller machine: its inventory as pairs of
+ * (denomination, quantity), and the sequence number of its latest inventory change, so that
+ * events of a reloaded machine continue where they left off.
+ */
+public final class MachineSnapshot {
+
+  private final int[] inventory;
+  private final long sequence;
+
+  /**
+   * Constructor for MachineSnapshot.
+   * @param inventory the inventory pairs, in the format accepted by deposit.
+   * @param sequence the sequence number of the latest inventory change.
+   * @throws IllegalArgumentException if inventory is null or sequence is negative.
+   */
+  public MachineSnapshot(int[] inventory, long sequence) throws IllegalArgumentException {
+    if (inventory == null) {
+      throw new IllegalArgumentException("Inventory cannot be null");
+    }
+    if (sequence < 0) {
+      throw new IllegalArgumentException("Sequence cannot be negative: " + sequence);
+    }
+    this.inventory = inventory.clone();
+    this.sequence = sequence;
+  }
+
+  /**
+   * Returns the inventory pairs.
+   * @return a copy of the inventory pairs.
+   */
+  public int[] getInventory() {
+    return inventory.clone();
+  }
+
+  /**
+   * Returns the sequence number of the latest inventory change.
+   * @return the sequence number.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof MachineSnapshot)) {
+      return false;
+    }
+    MachineSnapshot snapshot = (MachineSnapshot) other;
+    return sequence == snapshot.sequence && Arrays.equals(inventory, snapshot.inventory);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(inventory) + Long.hashCode(sequence);
+  }
+
+  @Override
+  public String toString() {
+    return "MachineSnapshot{inventory=" + Arrays.toString(inventory) + ", sequence=" + sequence
+        + "}";
+  }
+}
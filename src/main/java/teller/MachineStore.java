@@ -0,0 +1,25 @@
+package teller;
+
+import java.io.IOException;
+
+/**
+ * This interface represents persistent storage for the state of teller machines.
+ */
+public interface MachineStore {
+  /**
+   * Loads the state of a machine.
+   * @param id the id of the machine.
+   * @return the stored state, or null if nothing is stored for the machine.
+   * @throws IOException if the storage cannot be read or holds corrupt data.
+   */
+  MachineSnapshot load(String id) throws IOException;
+
+  /**
+   * Stores the state of a machine, replacing what was stored before. When this method returns
+   * the state must be durable.
+   * @param id the id of the machine.
+   * @param snapshot the state to be stored.
+   * @throws IOException if the storage cannot be written.
+   */
+  void save(String id, MachineSnapshot snapshot) throws IOException;
+}
@@ -0,0 +1,148 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import teller.DepletionAnalytics;
+import teller.LimitedTellerMachine;
+
+/**
+ * Test to test the depletion estimates and alerts of teller.DepletionAnalytics.
+ */
+public class DepletionAnalyticsTest {
+
+  private static final double DELTA = 1e-6;
+
+  private ManualClock clock;
+  private LimitedTellerMachine tellerMachine;
+  private DepletionAnalytics analytics;
+  private List<String> alerts;
+
+  /**
+   * Sets up the tests with a half-life of 10 seconds and an alert threshold of 60 seconds.
+   */
+  @Before
+  public void setUp() {
+    clock = new ManualClock();
+    tellerMachine = new LimitedTellerMachine("atm-1", clock);
+    alerts = new ArrayList<>();
+    analytics = new DepletionAnalytics(Duration.ofSeconds(10), Duration.ofSeconds(60),
+        (machineId, denomination, quantity, secondsToEmpty) ->
+            alerts.add(machineId + ":" + denomination + ":" + quantity), clock);
+    tellerMachine.addInventoryListener(analytics);
+  }
+
+  /**
+   * Tests that nothing is reported for an unknown machine or an undepleted denomination.
+   */
+  @Test
+  public void testNoDepletion() {
+    assertEquals(0, analytics.getDepletionRate("unknown", 5), DELTA);
+    tellerMachine.deposit(5, 10);
+    assertEquals(0, analytics.getDepletionRate("atm-1", 5), DELTA);
+    assertEquals(Double.POSITIVE_INFINITY, analytics.getSecondsToEmpty("atm-1", 5), DELTA);
+    assertTrue(alerts.isEmpty());
+  }
+
+  /**
+   * Tests that the rate and time to empty follow the withdrawals, and that the rate halves after
+   * one half-life without withdrawals.
+   */
+  @Test
+  public void testRateDecays() {
+    tellerMachine.deposit(5, 10, 1, 1);
+    assertTrue(tellerMachine.withdraw(5, 1));
+    double rate = analytics.getDepletionRate("atm-1", 5);
+    assertEquals(Math.log(2) / 10, rate, DELTA);
+    assertEquals(9 / rate, analytics.getSecondsToEmpty("atm-1", 5), DELTA);
+
+    clock.advance(Duration.ofSeconds(10));
+    assertTrue(tellerMachine.withdraw(1, 1));
+    assertEquals(rate / 2, analytics.getDepletionRate("atm-1", 5), DELTA);
+  }
+
+  /**
+   * Tests that an alert is raised once when the threshold is crossed, and again only after the
+   * denomination has been refilled in between.
+   */
+  @Test
+  public void testAlertOnThresholdCrossing() {
+    tellerMachine.deposit(5, 10);
+    assertTrue(tellerMachine.withdraw(5, 1));
+    assertTrue(alerts.isEmpty());
+    assertTrue(tellerMachine.withdraw(5, 1));
+    assertEquals(1, alerts.size());
+    assertEquals("atm-1:5:8", alerts.get(0));
+    assertTrue(tellerMachine.withdraw(5, 1));
+    assertEquals(1, alerts.size());
+
+    tellerMachine.deposit(5, 100);
+    assertTrue(tellerMachine.withdraw(5, 1));
+    assertEquals(1, alerts.size());
+    assertTrue(tellerMachine.withdraw(5, 106));
+    assertEquals(2, alerts.size());
+  }
+
+  /**
+   * Tests that bills broken down to make change count as depletion of their denomination.
+   */
+  @Test
+  public void testConversionCountsAsDepletion() {
+    tellerMachine.deposit(20, 1);
+    assertTrue(tellerMachine.withdraw(5, 1));
+    assertTrue(analytics.getDepletionRate("atm-1", 20) > 0);
+    assertEquals(0, analytics.getDepletionRate("atm-1", 10), DELTA);
+    assertEquals(1, alerts.size());
+    assertEquals("atm-1:20:0", alerts.get(0));
+  }
+
+  /**
+   * Verifies the constructor throws an IllegalArgumentException if a duration is not positive.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidHalfLife() {
+    new DepletionAnalytics(Duration.ZERO, Duration.ofSeconds(1), (id, d, q, s) -> { });
+  }
+
+  /**
+   * Tests that a machine that has gone idle reports a decaying rate and a growing time to empty.
+   */
+  @Test
+  public void testIdleMachineDecaysAtQueryTime() {
+    tellerMachine.deposit(5, 10);
+    assertTrue(tellerMachine.withdraw(5, 1));
+    double rate = analytics.getDepletionRate("atm-1", 5);
+    double secondsToEmpty = analytics.getSecondsToEmpty("atm-1", 5);
+
+    clock.advance(Duration.ofSeconds(20));
+    assertEquals(rate / 4, analytics.getDepletionRate("atm-1", 5), DELTA);
+    assertEquals(secondsToEmpty * 4, analytics.getSecondsToEmpty("atm-1", 5), DELTA);
+  }
+
+  /**
+   * Tests that an alert listener that throws does not make the withdraw that raised the alert
+   * throw, and that its exception is reported on the withdrawing thread.
+   */
+  @Test
+  public void testThrowingAlertListenerIsContained() {
+    List<Throwable> reported = new ArrayList<>();
+    Thread.currentThread().setUncaughtExceptionHandler((thread, e) -> reported.add(e));
+    try {
+      LimitedTellerMachine machine = new LimitedTellerMachine("atm-2", clock);
+      machine.addInventoryListener(new DepletionAnalytics(Duration.ofSeconds(10),
+          Duration.ofSeconds(60), (machineId, denomination, quantity, secondsToEmpty) -> {
+            throw new IllegalStateException("pager down");
+          }, clock));
+      machine.deposit(5, 10);
+      assertTrue(machine.withdraw(5, 1));
+      assertTrue(machine.withdraw(5, 1));
+      assertEquals(8, machine.getQuantity(5));
+      assertEquals(1, reported.size());
+    } finally {
+      Thread.currentThread().setUncaughtExceptionHandler(null);
+    }
+  }
+}
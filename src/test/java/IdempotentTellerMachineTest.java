@@ -0,0 +1,363 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import teller.IdempotencyCache;
+import teller.IdempotentTellerMachine;
+import teller.LimitedTellerMachine;
+
+/**
+ * Test to test teller.IdempotentTellerMachine and teller.IdempotencyCache.
+ */
+public class IdempotentTellerMachineTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ManualClock clock;
+  private LimitedTellerMachine machine;
+  private IdempotencyCache cache;
+  private IdempotentTellerMachine tellerMachine;
+
+  /**
+   * Sets up the tests with a cache that remembers 1000 keys for one minute.
+   */
+  @Before
+  public void setUp() {
+    clock = new ManualClock();
+    machine = new LimitedTellerMachine("atm-1", clock);
+    cache = new IdempotencyCache(1000, Duration.ofMinutes(1), clock);
+    tellerMachine = new IdempotentTellerMachine(machine, cache);
+  }
+
+  /**
+   * Tests that a retried withdrawal returns the first outcome without dispensing again.
+   */
+  @Test
+  public void testRetriedWithdrawDispensesOnce() {
+    tellerMachine.deposit(20, 2);
+    assertTrue(tellerMachine.withdraw("req-1", 20, 1));
+    assertTrue(tellerMachine.withdraw("req-1", 20, 1));
+    assertEquals(1, machine.getQuantity(20));
+
+    assertTrue(tellerMachine.withdraw("req-2", 20, 1));
+    assertEquals(0, machine.getQuantity(20));
+  }
+
+  /**
+   * Tests that a refused withdrawal stays refused for its key, even after a refill.
+   */
+  @Test
+  public void testRefusedWithdrawIsRemembered() {
+    assertFalse(tellerMachine.withdraw("req-1", 5, 1));
+    tellerMachine.deposit("dep-1", 5, 1);
+    assertFalse(tellerMachine.withdraw("req-1", 5, 1));
+    assertEquals(1, machine.getQuantity(5));
+  }
+
+  /**
+   * Tests that a retried deposit is only made once, and an invalid deposit is rejected again
+   * without depositing its valid pairs twice.
+   */
+  @Test
+  public void testRetriedDeposit() {
+    tellerMachine.deposit("dep-1", 10, 1);
+    tellerMachine.deposit("dep-1", 10, 1);
+    assertEquals(1, machine.getQuantity(10));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        tellerMachine.deposit("dep-2", 1, 3, 2, 1);
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals("Invalid denomination: 2", e.getMessage());
+      }
+    }
+    assertEquals(3, machine.getQuantity(1));
+  }
+
+  /**
+   * Verifies that reusing a key for a different request throws an IllegalArgumentException.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testKeyReusedForDifferentRequest() {
+    tellerMachine.deposit("req-1", 1, 1);
+    tellerMachine.withdraw("req-1", 1, 1);
+  }
+
+  /**
+   * Tests that an outcome is forgotten after its time to live.
+   */
+  @Test
+  public void testExpiry() {
+    tellerMachine.deposit("dep-1", 1, 1);
+    clock.advance(Duration.ofSeconds(59));
+    tellerMachine.deposit("dep-1", 1, 1);
+    assertEquals(1, machine.getQuantity(1));
+    clock.advance(Duration.ofSeconds(1));
+    tellerMachine.deposit("dep-1", 1, 1);
+    assertEquals(2, machine.getQuantity(1));
+  }
+
+  /**
+   * Tests that the cache never holds much more than its maximum size.
+   */
+  @Test
+  public void testSizeBound() {
+    for (int i = 0; i < 5000; i++) {
+      tellerMachine.deposit("dep-" + i, 1, 1);
+    }
+    assertTrue(cache.size() <= 1000 + 16);
+    assertEquals(5000, machine.getQuantity(1));
+  }
+
+  /**
+   * Tests that outcomes written to the journal survive a restart, except the ones that expired
+   * meanwhile.
+   */
+  @Test
+  public void testJournalSurvivesRestart() throws IOException {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      IdempotentTellerMachine journaledMachine = new IdempotentTellerMachine(machine, journaled);
+      journaledMachine.deposit(20, 1);
+      assertTrue(journaledMachine.withdraw("req-1", 20, 1));
+      clock.advance(Duration.ofSeconds(30));
+      assertFalse(journaledMachine.withdraw("req-2", 20, 1));
+    }
+
+    clock.advance(Duration.ofSeconds(45));
+    try (IdempotencyCache restarted = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      assertEquals(1, restarted.size());
+      IdempotentTellerMachine restartedMachine = new IdempotentTellerMachine(machine, restarted);
+      machine.deposit(20, 2);
+      assertFalse(restartedMachine.withdraw("req-2", 20, 1));
+      assertTrue(restartedMachine.withdraw("req-1", 20, 1));
+      assertEquals(1, machine.getQuantity(20));
+    }
+  }
+
+  /**
+   * Tests that a record torn by a crash is cut off, and that later outcomes are still found.
+   */
+  @Test
+  public void testTornJournalTail() throws IOException {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      new IdempotentTellerMachine(machine, journaled).deposit("dep-1", 1, 1);
+    }
+    Files.write(journal, new byte[]{0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+    try (IdempotencyCache restarted = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      assertEquals(1, restarted.size());
+      new IdempotentTellerMachine(machine, restarted).deposit("dep-2", 1, 1);
+    }
+    try (IdempotencyCache restarted = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      assertEquals(2, restarted.size());
+      IdempotentTellerMachine restartedMachine = new IdempotentTellerMachine(machine, restarted);
+      restartedMachine.deposit("dep-1", 1, 1);
+      restartedMachine.deposit("dep-2", 1, 1);
+      assertEquals(2, machine.getQuantity(1));
+    }
+  }
+
+  /**
+   * Tests that compaction drops expired outcomes from the journal and keeps the others.
+   */
+  @Test
+  public void testCompact() throws IOException {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      IdempotentTellerMachine journaledMachine = new IdempotentTellerMachine(machine, journaled);
+      for (int i = 0; i < 100; i++) {
+        journaledMachine.deposit("old-" + i, 1, 1);
+      }
+      clock.advance(Duration.ofMinutes(1));
+      journaledMachine.deposit("new-1", 1, 1);
+      long before = Files.size(journal);
+      journaled.compact();
+      assertTrue(Files.size(journal) < before / 50);
+      journaledMachine.deposit("new-2", 1, 1);
+    }
+    try (IdempotencyCache restarted = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      assertEquals(2, restarted.size());
+    }
+  }
+
+  /**
+   * Tests that a key used on one machine is refused on another machine sharing the cache.
+   */
+  @Test
+  public void testSharedCacheKeepsMachinesApart() {
+    LimitedTellerMachine other = new LimitedTellerMachine("atm-2", clock);
+    IdempotentTellerMachine otherMachine = new IdempotentTellerMachine(other, cache);
+    tellerMachine.deposit("dep-1", 5, 1);
+    try {
+      otherMachine.deposit("dep-1", 5, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals(0, other.getQuantity(5));
+    }
+  }
+
+  /**
+   * Verifies that a different request with the same hash code as the first is refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testKeyReusedForRequestWithSameHash() {
+    assertEquals(Arrays.hashCode(new int[]{1, 0}), Arrays.hashCode(new int[]{0, 31}));
+    tellerMachine.withdraw("req-1", 1, 0);
+    tellerMachine.withdraw("req-1", 0, 31);
+  }
+
+  /**
+   * Tests that concurrent requests with the same key through different wrappers of one machine
+   * dispense once.
+   */
+  @Test
+  public void testConcurrentRetriesDispenseOnce() throws Exception {
+    machine.deposit(20, 10);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        IdempotentTellerMachine wrapper = new IdempotentTellerMachine(machine, cache);
+        results.add(executor.submit(() -> {
+          start.await();
+          return wrapper.withdraw("req-1", 20, 1);
+        }));
+      }
+      start.countDown();
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals(9, machine.getQuantity(20));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that a damaged record followed by other records is refused instead of cut off with
+   * everything after it, so that none of the later outcomes is forgotten.
+   */
+  @Test
+  public void testCorruptRecordInsideJournal() throws IOException {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    long firstRecordEnd;
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      IdempotentTellerMachine journaledMachine = new IdempotentTellerMachine(machine, journaled);
+      journaledMachine.deposit("dep-0", 1, 1);
+      firstRecordEnd = Files.size(journal);
+      for (int i = 1; i < 5; i++) {
+        journaledMachine.deposit("dep-" + i, 1, 1);
+      }
+    }
+    long size = Files.size(journal);
+    byte[] bytes = Files.readAllBytes(journal);
+    bytes[(int) firstRecordEnd + 14] ^= 1;
+    Files.write(journal, bytes);
+
+    try {
+      new IdempotencyCache(1000, Duration.ofMinutes(1), clock, journal).close();
+      fail();
+    } catch (IOException e) {
+      assertEquals(size, Files.size(journal));
+    }
+  }
+
+  /**
+   * Tests that a damaged last record is cut off while the records before it are kept.
+   */
+  @Test
+  public void testCorruptLastRecordIsCutOff() throws IOException {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      IdempotentTellerMachine journaledMachine = new IdempotentTellerMachine(machine, journaled);
+      journaledMachine.deposit("dep-1", 1, 1);
+      journaledMachine.deposit("dep-2", 1, 1);
+    }
+    byte[] bytes = Files.readAllBytes(journal);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(journal, bytes);
+
+    try (IdempotencyCache restarted = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      assertEquals(1, restarted.size());
+    }
+  }
+
+  /**
+   * Tests that concurrent requests with different keys are all written to the journal.
+   */
+  @Test
+  public void testConcurrentJournalWrites() throws Exception {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      IdempotentTellerMachine journaledMachine = new IdempotentTellerMachine(machine, journaled);
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        String key = "dep-" + i;
+        results.add(executor.submit(() -> journaledMachine.deposit(key, 1, 1)));
+      }
+      for (Future<?> result : results) {
+        result.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    try (IdempotencyCache restarted = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      assertEquals(200, restarted.size());
+    }
+  }
+
+  /**
+   * Tests that a key too long to be journaled is refused before the machine is touched.
+   */
+  @Test
+  public void testKeyTooLongForJournal() throws IOException {
+    Path journal = folder.getRoot().toPath().resolve("outcomes");
+    machine.deposit(20, 1);
+    try (IdempotencyCache journaled = new IdempotencyCache(1000, Duration.ofMinutes(1), clock,
+        journal)) {
+      IdempotentTellerMachine journaledMachine = new IdempotentTellerMachine(machine, journaled);
+      try {
+        journaledMachine.withdraw("k".repeat(70000), 20, 1);
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals(1, machine.getQuantity(20));
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Before;
+import org.junit.Test;
+import teller.InventoryHistory;
+import teller.LimitedTellerMachine;
+
+/**
+ * Test to test the point-in-time queries of teller.InventoryHistory.
+ */
+public class InventoryHistoryTest {
+
+  private ManualClock clock;
+  private LimitedTellerMachine tellerMachine;
+  private InventoryHistory history;
+
+  /**
+   * Sets up the tests with a checkpoint every 8 changes.
+   */
+  @Before
+  public void setUp() {
+    clock = new ManualClock();
+    clock.advance(Duration.ofSeconds(100));
+    tellerMachine = new LimitedTellerMachine("atm-1", clock);
+    history = new InventoryHistory(8);
+    tellerMachine.addInventoryListener(history);
+  }
+
+  /**
+   * Tests that nothing is known before the first recorded change or about unknown machines.
+   */
+  @Test
+  public void testUnknownTimes() {
+    assertNull(history.getInventoryAt("atm-1", 100000));
+    tellerMachine.deposit(10, 1);
+    assertNull(history.getInventoryAt("atm-1", 99999));
+    assertNull(history.getInventoryAt("atm-2", 100000));
+    assertArrayEquals(new int[]{20, 0, 10, 1, 5, 0, 1, 0},
+        history.getInventoryAt("atm-1", 100000));
+  }
+
+  /**
+   * Tests that the history starts from the inventory the machine had when it was attached.
+   */
+  @Test
+  public void testAttachedToNonEmptyMachine() {
+    LimitedTellerMachine machine = new LimitedTellerMachine("atm-2", clock);
+    machine.deposit(20, 5);
+    machine.addInventoryListener(history);
+    clock.advance(Duration.ofSeconds(1));
+    machine.deposit(1, 1);
+    assertArrayEquals(new int[]{20, 5, 10, 0, 5, 0, 1, 1},
+        history.getInventoryAt("atm-2", 101000));
+  }
+
+  /**
+   * Tests that every point in time of a random sequence of operations is answered with the
+   * inventory the machine had then, and that checkpoints are taken every 8 changes.
+   */
+  @Test
+  public void testMatchesRecordedInventory() {
+    Random random = new Random(42);
+    Map<Long, int[]> expected = new TreeMap<>();
+    int[] denominations = {1, 5, 10, 20};
+    tellerMachine.deposit(20, 1);
+    expected.put(clock.millis(), tellerMachine.getInventory());
+    int changes = 1;
+    for (int i = 0; i < 500; i++) {
+      clock.advance(Duration.ofMillis(random.nextInt(3) * 1000));
+      int denomination = denominations[random.nextInt(4)];
+      if (random.nextBoolean()) {
+        tellerMachine.deposit(denomination, 1 + random.nextInt(5));
+        changes++;
+      } else if (tellerMachine.withdraw(denomination, 1 + random.nextInt(3))) {
+        changes++;
+      }
+      expected.put(clock.millis(), tellerMachine.getInventory());
+    }
+
+    for (Map.Entry<Long, int[]> entry : expected.entrySet()) {
+      assertArrayEquals(entry.getValue(), history.getInventoryAt("atm-1", entry.getKey()));
+      // nothing changes between two recorded times
+      assertArrayEquals(entry.getValue(), history.getInventoryAt("atm-1", entry.getKey() + 500));
+    }
+    assertEquals(1 + changes / 8, history.getCheckpointCount("atm-1"));
+  }
+
+  /**
+   * Tests that truncation keeps every time from the horizon on answerable, forgets the times
+   * before the new base checkpoint, and that recording continues afterwards.
+   */
+  @Test
+  public void testTruncateBefore() {
+    Map<Long, int[]> expected = new TreeMap<>();
+    for (int i = 0; i < 100; i++) {
+      clock.advance(Duration.ofSeconds(1));
+      tellerMachine.deposit(1 + (i % 2) * 4, 1);
+      expected.put(clock.millis(), tellerMachine.getInventory());
+    }
+    long horizon = 150000;
+    history.truncateBefore(horizon);
+    assertEquals(7, history.getCheckpointCount("atm-1"));
+    assertNull(history.getInventoryAt("atm-1", 101000));
+
+    clock.advance(Duration.ofSeconds(1));
+    tellerMachine.deposit(20, 1);
+    expected.put(clock.millis(), tellerMachine.getInventory());
+    for (Map.Entry<Long, int[]> entry : expected.entrySet()) {
+      if (entry.getKey() >= horizon) {
+        assertArrayEquals(entry.getValue(), history.getInventoryAt("atm-1", entry.getKey()));
+      }
+    }
+  }
+
+  /**
+   * Tests that truncating past the last change still keeps the latest inventory.
+   */
+  @Test
+  public void testTruncateKeepsLatestInventory() {
+    for (int i = 0; i < 20; i++) {
+      clock.advance(Duration.ofSeconds(1));
+      tellerMachine.deposit(10, 1);
+    }
+    history.truncateBefore(Long.MAX_VALUE);
+    assertEquals(1, history.getCheckpointCount("atm-1"));
+    assertArrayEquals(new int[]{20, 0, 10, 20, 5, 0, 1, 0},
+        history.getInventoryAt("atm-1", Long.MAX_VALUE));
+    assertNull(history.getInventoryAt("atm-1", 110000));
+  }
+
+  /**
+   * Verifies the constructor throws an IllegalArgumentException if the interval is not positive.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidInterval() {
+    new InventoryHistory(0);
+  }
+}
@@ -0,0 +1,375 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import teller.InventoryEvent;
+import teller.InventoryPublisher;
+import teller.LimitedTellerMachine;
+
+/**
+ * Test to test inventory events of teller.LimitedTellerMachine and their delivery through
+ * teller.InventoryPublisher.
+ */
+public class InventoryPublisherTest {
+
+  private LimitedTellerMachine tellerMachine;
+
+  /**
+   * Sets up the tests by creating a tellerMachine with no denominations.
+   */
+  @Before
+  public void setUp() {
+    tellerMachine = new LimitedTellerMachine("atm-1");
+  }
+
+  /**
+   * A subscriber that records everything and requests a fixed number of events up front.
+   */
+  private static class RecordingSubscriber implements Flow.Subscriber<InventoryEvent> {
+    private final long initialRequest;
+    private final List<InventoryEvent> events = new ArrayList<>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private Flow.Subscription subscription;
+    private Throwable error;
+
+    RecordingSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      if (initialRequest > 0) {
+        subscription.request(initialRequest);
+      }
+    }
+
+    @Override
+    public void onNext(InventoryEvent item) {
+      events.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed.countDown();
+    }
+  }
+
+  /**
+   * Tests that deposits and withdrawals notify listeners with the quantities after the change
+   * and the net change per denomination, including bills broken down to make change.
+   */
+  @Test
+  public void testListenerReceivesCommittedChanges() {
+    List<InventoryEvent> events = new ArrayList<>();
+    tellerMachine.addInventoryListener(events::add);
+    tellerMachine.deposit(20, 1);
+    assertTrue(tellerMachine.withdraw(5, 1));
+
+    assertEquals(2, events.size());
+    InventoryEvent deposit = events.get(0);
+    assertEquals("atm-1", deposit.getMachineId());
+    assertEquals(InventoryEvent.Type.DEPOSIT, deposit.getType());
+    assertEquals(1, deposit.getSequence());
+    assertEquals(1, deposit.getChange(20));
+
+    InventoryEvent withdraw = events.get(1);
+    assertEquals(InventoryEvent.Type.WITHDRAW, withdraw.getType());
+    assertEquals(2, withdraw.getSequence());
+    assertEquals(-1, withdraw.getChange(20));
+    assertEquals(1, withdraw.getChange(10));
+    assertEquals(1, withdraw.getChange(5));
+    assertEquals(0, withdraw.getQuantity(20));
+    assertEquals(1, withdraw.getQuantity(10));
+    assertEquals(1, withdraw.getQuantity(5));
+  }
+
+  /**
+   * Tests that operations that do not change the inventory produce no events.
+   */
+  @Test
+  public void testNoEventWithoutChange() {
+    List<InventoryEvent> events = new ArrayList<>();
+    tellerMachine.addInventoryListener(events::add);
+    tellerMachine.deposit();
+    tellerMachine.deposit(1, 0);
+    assertFalse(tellerMachine.withdraw(1, 1));
+    assertTrue(tellerMachine.withdraw(1, 0));
+    assertEquals(0, events.size());
+  }
+
+  /**
+   * Tests that the pairs deposited before an invalid pair are still published.
+   */
+  @Test
+  public void testPartialDepositIsPublished() {
+    List<InventoryEvent> events = new ArrayList<>();
+    tellerMachine.addInventoryListener(events::add);
+    try {
+      tellerMachine.deposit(10, 2, 3, 1);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(1, events.size());
+    assertEquals(2, events.get(0).getChange(10));
+  }
+
+  /**
+   * Tests that a subscriber only receives as many events as it requested, and the rest are
+   * delivered once it requests more.
+   */
+  @Test
+  public void testBackpressure() {
+    InventoryPublisher publisher = new InventoryPublisher(Runnable::run, 16, false);
+    tellerMachine.addInventoryListener(publisher);
+    RecordingSubscriber subscriber = new RecordingSubscriber(1);
+    publisher.subscribe(subscriber);
+
+    tellerMachine.deposit(1, 1);
+    tellerMachine.deposit(1, 1);
+    tellerMachine.deposit(1, 1);
+    assertEquals(1, subscriber.events.size());
+
+    subscriber.subscription.request(5);
+    assertEquals(3, subscriber.events.size());
+    assertEquals(3, subscriber.events.get(2).getSequence());
+  }
+
+  /**
+   * Tests that a full buffer drops the oldest event instead of blocking the machine.
+   */
+  @Test
+  public void testFullBufferDropsOldest() {
+    InventoryPublisher publisher = new InventoryPublisher(Runnable::run, 2, false);
+    tellerMachine.addInventoryListener(publisher);
+    RecordingSubscriber subscriber = new RecordingSubscriber(0);
+    publisher.subscribe(subscriber);
+
+    for (int i = 0; i < 5; i++) {
+      tellerMachine.deposit(1, 1);
+    }
+    assertEquals(3, publisher.getDroppedCount());
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertEquals(2, subscriber.events.size());
+    assertEquals(4, subscriber.events.get(0).getSequence());
+    assertEquals(5, subscriber.events.get(1).getSequence());
+  }
+
+  /**
+   * Tests that in coalescing mode the buffered events of a machine are merged into one.
+   */
+  @Test
+  public void testCoalescing() {
+    InventoryPublisher publisher = new InventoryPublisher(Runnable::run, 4, true);
+    LimitedTellerMachine other = new LimitedTellerMachine("atm-2");
+    tellerMachine.addInventoryListener(publisher);
+    other.addInventoryListener(publisher);
+    RecordingSubscriber subscriber = new RecordingSubscriber(0);
+    publisher.subscribe(subscriber);
+
+    tellerMachine.deposit(20, 2);
+    other.deposit(5, 1);
+    assertTrue(tellerMachine.withdraw(10, 1));
+    assertEquals(0, publisher.getDroppedCount());
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertEquals(2, subscriber.events.size());
+    InventoryEvent merged = subscriber.events.get(0);
+    assertEquals("atm-1", merged.getMachineId());
+    assertEquals(2, merged.getSequence());
+    assertEquals(1, merged.getChange(20));
+    assertEquals(1, merged.getChange(10));
+    assertEquals(1, merged.getQuantity(20));
+    assertEquals("atm-2", subscriber.events.get(1).getMachineId());
+  }
+
+  /**
+   * Tests that a non-positive request is signalled as an error.
+   */
+  @Test
+  public void testInvalidRequest() {
+    InventoryPublisher publisher = new InventoryPublisher(Runnable::run, 4, false);
+    RecordingSubscriber subscriber = new RecordingSubscriber(0);
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(0);
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+    assertEquals(0, publisher.getSubscriberCount());
+  }
+
+  /**
+   * Tests that closing delivers the buffered events on an executor and then completes.
+   */
+  @Test
+  public void testAsynchronousDeliveryAndClose() throws InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      InventoryPublisher publisher = new InventoryPublisher(executor, 16, false);
+      tellerMachine.addInventoryListener(publisher);
+      RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+      publisher.subscribe(subscriber);
+      tellerMachine.deposit(1, 1, 5, 1);
+      tellerMachine.deposit(10, 1);
+      publisher.close();
+      tellerMachine.deposit(20, 1);
+
+      assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+      assertEquals(2, subscriber.events.size());
+      assertEquals(0, publisher.getSubscriberCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Verifies the constructor throws an IllegalArgumentException if the capacity is not positive.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCapacity() {
+    new InventoryPublisher(Runnable::run, 0, false);
+  }
+
+  /**
+   * Tests that changes made before a listener was added still take sequence numbers.
+   */
+  @Test
+  public void testSequenceAdvancesWithoutListeners() {
+    tellerMachine.deposit(1, 1);
+    tellerMachine.deposit(1, 1);
+    assertEquals(2, tellerMachine.getSequence());
+    List<InventoryEvent> events = new ArrayList<>();
+    tellerMachine.addInventoryListener(events::add);
+    tellerMachine.deposit(1, 1);
+    assertEquals(3, events.get(0).getSequence());
+  }
+
+  /**
+   * Tests that a failing listener does not hide why a deposit was rejected.
+   */
+  @Test
+  public void testListenerFailureDoesNotReplaceDepositError() {
+    List<Throwable> reported = reportFailures();
+    tellerMachine.addInventoryListener(event -> {
+      throw new IllegalStateException("listener failed");
+    });
+    try {
+      tellerMachine.deposit(10, 2, 3, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Invalid denomination: 3", e.getMessage());
+      assertEquals(1, reported.size());
+    }
+  }
+
+  /**
+   * Tests that a failing listener neither makes a committed withdraw throw nor keeps the other
+   * listeners from being notified, and that its exception is reported.
+   */
+  @Test
+  public void testListenerFailureIsContained() {
+    List<Throwable> reported = reportFailures();
+    List<InventoryEvent> events = new ArrayList<>();
+    tellerMachine.addInventoryListener(event -> {
+      throw new IllegalStateException("listener failed");
+    });
+    tellerMachine.addInventoryListener(events::add);
+    tellerMachine.deposit(20, 1);
+    assertTrue(tellerMachine.withdraw(20, 1));
+    assertEquals(0, tellerMachine.getQuantity(20));
+    assertEquals(2, events.size());
+    assertEquals(2, reported.size());
+    assertTrue(reported.get(0) instanceof IllegalStateException);
+  }
+
+  /**
+   * Tests that a subscriber is told when the executor refuses to deliver to it.
+   */
+  @Test
+  public void testRejectedExecutionSignalsError() {
+    InventoryPublisher publisher = new InventoryPublisher(task -> {
+      throw new RejectedExecutionException("shut down");
+    }, 4, false);
+    RecordingSubscriber subscriber = new RecordingSubscriber(1);
+    publisher.subscribe(subscriber);
+    assertTrue(subscriber.error instanceof RejectedExecutionException);
+    assertEquals(0, publisher.getSubscriberCount());
+  }
+
+  /**
+   * Tests that dropped events are still counted after their subscriber went away.
+   */
+  @Test
+  public void testDroppedCountSurvivesCancellation() {
+    InventoryPublisher publisher = new InventoryPublisher(Runnable::run, 1, false);
+    tellerMachine.addInventoryListener(publisher);
+    RecordingSubscriber subscriber = new RecordingSubscriber(0);
+    publisher.subscribe(subscriber);
+    tellerMachine.deposit(1, 1);
+    tellerMachine.deposit(1, 1);
+    subscriber.subscription.cancel();
+    assertEquals(1, publisher.getDroppedCount());
+  }
+
+  /**
+   * Tests that a subscriber throwing from onError after the executor rejected a delivery does
+   * not make the withdraw that triggered the delivery throw.
+   */
+  @Test
+  public void testThrowingSubscriberOnRejection() {
+    List<Throwable> reported = reportFailures();
+    AtomicBoolean shutDown = new AtomicBoolean();
+    InventoryPublisher publisher = new InventoryPublisher(task -> {
+      if (shutDown.get()) {
+        throw new RejectedExecutionException("shut down");
+      }
+      task.run();
+    }, 4, false);
+    tellerMachine.addInventoryListener(publisher);
+    publisher.subscribe(new RecordingSubscriber(1) {
+      @Override
+      public void onError(Throwable throwable) {
+        throw new IllegalStateException("onError failed");
+      }
+    });
+    tellerMachine.deposit(20, 1);
+    shutDown.set(true);
+    assertTrue(tellerMachine.withdraw(20, 1));
+    assertEquals(1, reported.size());
+    assertEquals(0, publisher.getSubscriberCount());
+  }
+
+  /**
+   * Collects the exceptions reported on this thread until the test ends.
+   */
+  private List<Throwable> reportFailures() {
+    List<Throwable> reported = new ArrayList<>();
+    Thread.currentThread().setUncaughtExceptionHandler((thread, e) -> reported.add(e));
+    return reported;
+  }
+
+  /**
+   * Restores the default reporting of exceptions on this thread.
+   */
+  @After
+  public void tearDown() {
+    Thread.currentThread().setUncaughtExceptionHandler(null);
+  }
+}
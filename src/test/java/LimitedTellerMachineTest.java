@@ -1,10 +1,13 @@
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.time.Clock;
 import org.junit.Before;
 import org.junit.Test;
 import teller.LimitedTellerMachine;
+import teller.MachineSnapshot;
 
 /**
  * Test to test all public methods in teller.LimitedTellerMachine which implements its methods from
@@ -525,4 +528,33 @@ public class LimitedTellerMachineTest {
     assertEquals(1, tellerMachine.getQuantity(10));
     assertEquals(12, tellerMachine.getQuantity(20));
   }
-}
\ No newline at end of file
+
+  /**
+   * Verifies that get inventory returns every denomination with its quantity, and that
+   * depositing it into an empty machine recreates the inventory.
+   */
+  @Test
+  public void getInventory() {
+    tellerMachine.deposit(10, 1, 20, 2, 1, 7);
+    assertArrayEquals(new int[]{20, 2, 10, 1, 5, 0, 1, 7}, tellerMachine.getInventory());
+
+    LimitedTellerMachine copy = new LimitedTellerMachine();
+    copy.deposit(tellerMachine.getInventory());
+    assertArrayEquals(tellerMachine.getInventory(), copy.getInventory());
+  }
+
+  /**
+   * Verifies that a machine restored from a snapshot has the same inventory and sequence.
+   */
+  @Test
+  public void snapshotRoundTrip() {
+    tellerMachine.deposit(10, 1, 20, 2);
+    assertTrue(tellerMachine.withdraw(10, 1));
+    MachineSnapshot snapshot = tellerMachine.getSnapshot();
+    assertEquals(2, snapshot.getSequence());
+
+    LimitedTellerMachine restored = new LimitedTellerMachine("atm-1", Clock.systemUTC(), snapshot);
+    assertArrayEquals(tellerMachine.getInventory(), restored.getInventory());
+    assertEquals(2, restored.getSequence());
+  }
+}
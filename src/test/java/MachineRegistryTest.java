@@ -0,0 +1,393 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import teller.FileMachineStore;
+import teller.InventoryEvent;
+import teller.LimitedTellerMachine;
+import teller.MachineRegistry;
+import teller.MachineSnapshot;
+import teller.MachineStore;
+
+/**
+ * Test to test teller.MachineRegistry and teller.FileMachineStore.
+ */
+public class MachineRegistryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private CountingStore store;
+
+  /**
+   * A store in memory that counts loads and saves.
+   */
+  private static class CountingStore implements MachineStore {
+    private final Map<String, MachineSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger saves = new AtomicInteger();
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public MachineSnapshot load(String id) {
+      loads.incrementAndGet();
+      return snapshots.get(id);
+    }
+
+    @Override
+    public void save(String id, MachineSnapshot snapshot) throws IOException {
+      if (failing.contains(id)) {
+        throw new IOException("disk full");
+      }
+      saves.incrementAndGet();
+      snapshots.put(id, snapshot);
+    }
+
+    int[] inventoryOf(String id) {
+      return snapshots.get(id).getInventory();
+    }
+  }
+
+  /**
+   * Sets up the tests with an empty store.
+   */
+  @Before
+  public void setUp() {
+    store = new CountingStore();
+  }
+
+  /**
+   * Tests that the file store returns what was saved, and null for unknown machines.
+   */
+  @Test
+  public void testFileStoreRoundTrip() throws IOException {
+    FileMachineStore fileStore = new FileMachineStore(folder.getRoot().toPath().resolve("x"));
+    assertNull(fileStore.load("atm/1"));
+    fileStore.save("atm/1", new MachineSnapshot(new int[]{20, 3, 10, 0, 5, 1, 1, 9}, 4));
+    fileStore.save("atm/1", new MachineSnapshot(new int[]{20, 4, 10, 0, 5, 1, 1, 9}, 5));
+    assertEquals(new MachineSnapshot(new int[]{20, 4, 10, 0, 5, 1, 1, 9}, 5),
+        fileStore.load("atm/1"));
+  }
+
+  /**
+   * Tests that the file store accepts ids too long to be encoded into a file name.
+   */
+  @Test
+  public void testFileStoreLongId() throws IOException {
+    FileMachineStore fileStore = new FileMachineStore(folder.getRoot().toPath());
+    String longId = "atm-" + "x".repeat(1000);
+    fileStore.save(longId, new MachineSnapshot(new int[]{1, 1}, 1));
+    fileStore.save(longId + "y", new MachineSnapshot(new int[]{1, 2}, 1));
+    assertArrayEquals(new int[]{1, 1}, fileStore.load(longId).getInventory());
+    assertArrayEquals(new int[]{1, 2}, fileStore.load(longId + "y").getInventory());
+  }
+
+  /**
+   * Tests that ids differing only in the case of their encoding get files whose names differ
+   * regardless of case, so they cannot overwrite each other on case-insensitive file systems.
+   */
+  @Test
+  public void testFileStoreCaseInsensitiveNames() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    FileMachineStore fileStore = new FileMachineStore(directory);
+    fileStore.save("aaa", new MachineSnapshot(new int[]{20, 1}, 1));
+    fileStore.save("aaG", new MachineSnapshot(new int[]{20, 2}, 1));
+    fileStore.save("AAA", new MachineSnapshot(new int[]{20, 3}, 1));
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(3, files.map(file -> file.getFileName().toString().toLowerCase(Locale.ROOT))
+          .distinct().count());
+    }
+    assertArrayEquals(new int[]{20, 1}, fileStore.load("aaa").getInventory());
+    assertArrayEquals(new int[]{20, 2}, fileStore.load("aaG").getInventory());
+    assertArrayEquals(new int[]{20, 3}, fileStore.load("AAA").getInventory());
+  }
+
+  /**
+   * Verifies that a file with an implausible length is reported as corrupt instead of read.
+   */
+  @Test(expected = IOException.class)
+  public void testFileStoreCorruptFile() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    FileMachineStore fileStore = new FileMachineStore(directory);
+    fileStore.save("atm-1", new MachineSnapshot(new int[]{20, 1}, 1));
+    try (Stream<Path> files = Files.list(directory)) {
+      Path file = files.findFirst().get();
+      byte[] bytes = Files.readAllBytes(file);
+      bytes[0] = 0x7f;
+      Files.write(file, bytes);
+    }
+    fileStore.load("atm-1");
+  }
+
+  /**
+   * Tests that a machine is loaded once, created empty if nothing is stored, and then served
+   * from memory.
+   */
+  @Test
+  public void testLazyLoad() {
+    store.snapshots.put("atm-1", new MachineSnapshot(new int[]{20, 2, 1, 5}, 3));
+    MachineRegistry registry = new MachineRegistry(store, 10);
+    LimitedTellerMachine machine = registry.get("atm-1");
+    assertEquals("atm-1", machine.getId());
+    assertEquals(2, machine.getQuantity(20));
+    assertEquals(5, machine.getQuantity(1));
+    assertSame(machine, registry.get("atm-1"));
+    assertEquals(0, registry.get("atm-2").getQuantity(20));
+    assertEquals(2, store.loads.get());
+  }
+
+  /**
+   * Tests that only changed machines are written back when evicted, and that an evicted machine
+   * is reloaded with its changes.
+   */
+  @Test
+  public void testDirtyWriteBackOnEviction() {
+    MachineRegistry registry = new MachineRegistry(store, 1);
+    registry.get("atm-1").deposit(10, 3);
+    registry.get("atm-2");
+    assertFalse(registry.isResident("atm-1"));
+    assertEquals(1, registry.size());
+    assertEquals(1, store.saves.get());
+
+    assertEquals(3, registry.get("atm-1").getQuantity(10));
+    assertEquals(1, store.saves.get());
+  }
+
+  /**
+   * Tests that flush writes every changed machine once.
+   */
+  @Test
+  public void testFlush() {
+    MachineRegistry registry = new MachineRegistry(store, 10);
+    registry.get("atm-1").deposit(5, 1);
+    registry.get("atm-2");
+    registry.close();
+    assertEquals(1, store.saves.get());
+    registry.flush();
+    assertEquals(1, store.saves.get());
+    assertArrayEquals(new int[]{20, 0, 10, 0, 5, 1, 1, 0}, store.inventoryOf("atm-1"));
+  }
+
+  /**
+   * Tests that frequently used machines stay resident while many machines are each used once,
+   * as long as the hot machines are still used now and then during the scan.
+   */
+  @Test
+  public void testScanResistance() {
+    MachineRegistry registry = new MachineRegistry(store, 100);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 50; i++) {
+        registry.get("hot-" + i);
+      }
+    }
+    for (int i = 0; i < 10000; i++) {
+      registry.get("cold-" + i);
+      if (i % 20 == 0) {
+        registry.get("hot-" + (i / 20) % 50);
+      }
+    }
+    for (int i = 0; i < 50; i++) {
+      assertTrue("hot-" + i, registry.isResident("hot-" + i));
+    }
+    assertEquals(100, registry.size());
+  }
+
+  /**
+   * Tests that concurrent requests for the same machine trigger a single load.
+   */
+  @Test
+  public void testSingleLoadForConcurrentRequests() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+    MachineStore slowStore = new MachineStore() {
+      @Override
+      public MachineSnapshot load(String id) throws IOException {
+        loads.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return null;
+      }
+
+      @Override
+      public void save(String id, MachineSnapshot snapshot) {
+      }
+    };
+    MachineRegistry registry = new MachineRegistry(slowStore, 10);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<LimitedTellerMachine>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> registry.get("atm-1")));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      LimitedTellerMachine first = results.get(0).get(5, TimeUnit.SECONDS);
+      for (Future<LimitedTellerMachine> result : results) {
+        assertSame(first, result.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals(1, loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that listeners registered on the registry are attached to loaded machines.
+   */
+  @Test
+  public void testListenersAttachedOnLoad() {
+    store.snapshots.put("atm-1", new MachineSnapshot(new int[]{20, 2}, 1));
+    MachineRegistry registry = new MachineRegistry(store, 10);
+    List<InventoryEvent> events = new ArrayList<>();
+    registry.addInventoryListener(events::add);
+    registry.get("atm-1").deposit(1, 1);
+    assertEquals(1, events.size());
+    assertEquals(2, events.get(0).getQuantity(20));
+  }
+
+  /**
+   * Verifies the constructor throws an IllegalArgumentException if the capacity is not positive.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCapacity() {
+    new MachineRegistry(store, 0);
+  }
+
+  /**
+   * Tests that a machine whose write-back fails is kept rather than dropped, that the load that
+   * evicted it still succeeds, and that flush writes it once the store recovers.
+   */
+  @Test
+  public void testFailedWriteBackKeepsMachine() {
+    MachineRegistry registry = new MachineRegistry(store, 1);
+    registry.get("a").deposit(20, 7);
+    store.failing.add("a");
+    assertEquals(0, registry.get("b").getQuantity(20));
+    assertTrue(registry.isResident("b"));
+    assertEquals(1, registry.getPendingWriteBackCount());
+
+    try {
+      registry.flush();
+      fail();
+    } catch (UncheckedIOException e) {
+      assertEquals(1, registry.getPendingWriteBackCount());
+    }
+    store.failing.clear();
+    registry.flush();
+    assertEquals(0, registry.getPendingWriteBackCount());
+    assertEquals(7, registry.get("a").getQuantity(20));
+  }
+
+  /**
+   * Tests that a machine whose write-back failed is taken back instead of reloaded stale.
+   */
+  @Test
+  public void testDetachedMachineIsTakenBack() {
+    MachineRegistry registry = new MachineRegistry(store, 1);
+    LimitedTellerMachine machine = registry.get("a");
+    machine.deposit(20, 7);
+    store.failing.add("a");
+    registry.get("b");
+    assertSame(machine, registry.get("a"));
+    assertEquals(2, store.loads.get());
+  }
+
+  /**
+   * Tests that flush writes the other machines when one of them cannot be written.
+   */
+  @Test
+  public void testFlushContinuesAfterFailure() {
+    MachineRegistry registry = new MachineRegistry(store, 10);
+    registry.get("a").deposit(1, 1);
+    registry.get("b").deposit(5, 1);
+    store.failing.add("a");
+    try {
+      registry.flush();
+      fail();
+    } catch (UncheckedIOException e) {
+      assertArrayEquals(new int[]{20, 0, 10, 0, 5, 1, 1, 0}, store.inventoryOf("b"));
+    }
+  }
+
+  /**
+   * Tests that a machine evicted while an operation runs on it is written back with the
+   * operation's changes once the operation is done.
+   */
+  @Test
+  public void testComputePinsMachine() {
+    MachineRegistry registry = new MachineRegistry(store, 1);
+    boolean withdrawn = registry.compute("a", machine -> {
+      machine.deposit(20, 2);
+      registry.get("b");
+      assertFalse(registry.isResident("a"));
+      return machine.withdraw(20, 1);
+    });
+    assertTrue(withdrawn);
+    assertEquals(0, registry.getPendingWriteBackCount());
+    assertArrayEquals(new int[]{20, 1, 10, 0, 5, 0, 1, 0}, store.inventoryOf("a"));
+  }
+
+  /**
+   * Tests that changes made through a reference kept after eviction are still written back.
+   */
+  @Test
+  public void testLateChangeIsWrittenBack() {
+    MachineRegistry registry = new MachineRegistry(store, 1);
+    LimitedTellerMachine machine = registry.get("a");
+    registry.get("b");
+    assertEquals(0, registry.getPendingWriteBackCount());
+    machine.deposit(10, 1);
+    assertEquals(1, registry.getPendingWriteBackCount());
+    registry.flush();
+    assertArrayEquals(new int[]{20, 0, 10, 1, 5, 0, 1, 0}, store.inventoryOf("a"));
+  }
+
+  /**
+   * Tests that a reloaded machine continues its event sequence and uses the registry's clock.
+   */
+  @Test
+  public void testReloadKeepsSequenceAndClock() {
+    ManualClock clock = new ManualClock();
+    clock.advance(Duration.ofSeconds(42));
+    MachineRegistry registry = new MachineRegistry(store, 1, clock);
+    registry.get("a").deposit(1, 1);
+    registry.get("a").deposit(1, 1);
+    registry.get("b");
+    List<InventoryEvent> events = new ArrayList<>();
+    registry.addInventoryListener(events::add);
+    LimitedTellerMachine reloaded = registry.get("a");
+    assertEquals(2, reloaded.getSequence());
+    reloaded.deposit(1, 1);
+    assertEquals(3, events.get(0).getSequence());
+    assertEquals(42000, events.get(0).getTimestamp());
+  }
+}
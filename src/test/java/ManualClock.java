@@ -0,0 +1,36 @@
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock for tests that only moves when told to.
+ */
+class ManualClock extends Clock {
+
+  private long millis;
+
+  /**
+   * Moves the clock forward.
+   * @param duration the amount of time to move forward by.
+   */
+  void advance(Duration duration) {
+    millis += duration.toMillis();
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return ZoneOffset.UTC;
+  }
+
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return this;
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(millis);
+  }
+}